@@ -0,0 +1,238 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.io.InputStreamReader;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.nisovin.shopkeepers.api.shopkeeper.ShopType;
+import com.nisovin.shopkeepers.api.shopkeeper.Shopkeeper;
+import com.nisovin.shopkeepers.api.shopkeeper.player.PlayerShopkeeper;
+import com.nisovin.shopkeepers.api.shopobjects.ShopObject;
+import com.nisovin.shopkeepers.api.shopobjects.ShopObjectType;
+
+import de.bluecolored.bluemap.api.BlueMapMap;
+import de.bluecolored.bluemap.api.markers.MarkerSet;
+
+/**
+ * Stub implementations and test data for the benchmarks.
+ * <p>
+ * The stubs only implement the methods that are used by the marker pipeline.
+ */
+final class BenchmarkFixtures {
+
+	static final String WORLD_NAME = "world";
+	static final Logger LOGGER = Logger.getLogger("Shopkeepers-BlueMap-Benchmark");
+
+	private static final String[] SHOP_TYPES = { "admin", "sell", "buy", "trade", "book" };
+
+	/**
+	 * Loads the settings from the default config.
+	 *
+	 * @return the settings
+	 */
+	static Settings loadDefaultSettings() {
+		var configStream = BenchmarkFixtures.class.getResourceAsStream("/config.yml");
+		if (configStream == null) {
+			throw new IllegalStateException("Missing default config!");
+		}
+
+		var config = YamlConfiguration.loadConfiguration(
+				new InputStreamReader(configStream, StandardCharsets.UTF_8)
+		);
+		return Settings.load(config);
+	}
+
+	/**
+	 * Creates a new {@link MarkerManager} for the given maps.
+	 *
+	 * @param settings
+	 *            the settings
+	 * @param maps
+	 *            the maps
+	 * @return the marker manager
+	 */
+	static MarkerManager createMarkerManager(Settings settings, StubMarkerMaps maps) {
+		return new MarkerManager(LOGGER, () -> settings, maps, new MarkerMetrics(), List.of());
+	}
+
+	/**
+	 * Creates snapshots of the given number of shopkeepers in {@link #WORLD_NAME}.
+	 * <p>
+	 * The shopkeepers are spread across the shop types and owners, similar to a real server.
+	 *
+	 * @param count
+	 *            the number of shopkeepers
+	 * @return the snapshots
+	 */
+	static List<ShopkeeperSnapshot> createSnapshots(int count) {
+		var snapshots = new ArrayList<ShopkeeperSnapshot>(count);
+		for (int id = 1; id <= count; id++) {
+			snapshots.add(createSnapshot(id, "Shop " + id));
+		}
+		return snapshots;
+	}
+
+	static ShopkeeperSnapshot createSnapshot(int id, String name) {
+		var shopTypeId = SHOP_TYPES[id % SHOP_TYPES.length];
+		var isAdmin = shopTypeId.equals("admin");
+		return new ShopkeeperSnapshot(
+				id,
+				new UUID(0L, id),
+				WORLD_NAME,
+				(id % 1000) * 4,
+				64,
+				(id / 1000) * 4,
+				shopTypeId,
+				shopTypeId + " shop",
+				"Villager",
+				name,
+				isAdmin ? "" : "Owner" + (id % 300),
+				id % 20
+		);
+	}
+
+	/**
+	 * Creates a stub {@link Shopkeeper}.
+	 *
+	 * @param id
+	 *            the shopkeeper id
+	 * @return the shopkeeper
+	 */
+	static Shopkeeper createShopkeeper(int id) {
+		var shopTypeId = SHOP_TYPES[id % SHOP_TYPES.length];
+		var uniqueId = new UUID(0L, id);
+		var ownerName = "Owner" + (id % 300);
+		var displayName = "\u00A7aShop " + id;
+		var recipes = Collections.nCopies(id % 20, null);
+
+		var shopType = stub(ShopType.class, Map.of(
+				"getIdentifier", shopTypeId,
+				"getDisplayName", shopTypeId + " shop"
+		));
+		var shopObjectType = stub(ShopObjectType.class, Map.of(
+				"getIdentifier", "villager",
+				"getDisplayName", "Villager"
+		));
+		var shopObject = stub(ShopObject.class, Map.of("getType", shopObjectType));
+
+		var methods = new HashMap<String, Object>();
+		methods.put("getId", id);
+		methods.put("getUniqueId", uniqueId);
+		methods.put("getWorldName", WORLD_NAME);
+		methods.put("getX", (id % 1000) * 4);
+		methods.put("getY", 64);
+		methods.put("getZ", (id / 1000) * 4);
+		methods.put("getType", shopType);
+		methods.put("getShopObject", shopObject);
+		methods.put("getDisplayName", displayName);
+		methods.put("getTradingRecipes", recipes);
+		methods.put("isValid", true);
+		methods.put("getOwnerName", ownerName);
+		methods.put("getOwnerUUID", new UUID(1L, id % 300));
+		return stub(PlayerShopkeeper.class, methods);
+	}
+
+	/**
+	 * Creates a stub that returns the given fixed values for the specified methods, and throws an
+	 * exception for all other methods.
+	 *
+	 * @param <T>
+	 *            the interface type
+	 * @param type
+	 *            the interface to implement
+	 * @param methods
+	 *            method name -&gt; return value
+	 * @return the stub
+	 */
+	static <T> T stub(Class<T> type, Map<String, ?> methods) {
+		Object proxy = Proxy.newProxyInstance(
+				type.getClassLoader(),
+				new Class<?>[] { type },
+				(instance, method, args) -> {
+					var name = method.getName();
+					if (methods.containsKey(name)) {
+						return methods.get(name);
+					}
+
+					return switch (name) {
+						case "hashCode" -> System.identityHashCode(instance);
+						case "equals" -> instance == args[0];
+						case "toString" -> type.getSimpleName() + methods;
+						default -> throw new UnsupportedOperationException(name);
+					};
+				}
+		);
+		return type.cast(proxy);
+	}
+
+	/**
+	 * A single world with a configurable number of in-memory BlueMap maps.
+	 */
+	static final class StubMarkerMaps implements MarkerMaps {
+
+		private final Map<String, BlueMapMap> maps = new LinkedHashMap<>();
+
+		StubMarkerMaps(int mapCount) {
+			for (int i = 0; i < mapCount; i++) {
+				var mapId = WORLD_NAME + "_map" + i;
+				// BlueMap uses concurrent maps as well:
+				Map<String, MarkerSet> markerSets = new ConcurrentHashMap<>();
+				maps.put(mapId, stub(BlueMapMap.class, Map.of(
+						"getId", mapId,
+						"getName", mapId,
+						"getMarkerSets", markerSets
+				)));
+			}
+		}
+
+		@Override
+		public Collection<BlueMapMap> getMaps(String worldName) {
+			if (!WORLD_NAME.equals(worldName)) {
+				return List.of();
+			}
+			return maps.values();
+		}
+
+		@Override
+		public @Nullable BlueMapMap getMap(String mapId) {
+			return maps.get(mapId);
+		}
+
+		@Override
+		public Collection<BlueMapMap> getAllMaps() {
+			return maps.values();
+		}
+
+		/**
+		 * Counts the markers across all maps.
+		 *
+		 * @return the marker count
+		 */
+		int countMarkers() {
+			var count = 0;
+			for (var map : maps.values()) {
+				var markerSet = map.getMarkerSets().get(MarkerManager.MARKERSET_ID);
+				if (markerSet != null) {
+					count += markerSet.getMarkers().size();
+				}
+			}
+			return count;
+		}
+	}
+
+	private BenchmarkFixtures() {
+	}
+}
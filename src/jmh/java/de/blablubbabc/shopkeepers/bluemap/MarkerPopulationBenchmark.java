@@ -0,0 +1,63 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.blablubbabc.shopkeepers.bluemap.BenchmarkFixtures.StubMarkerMaps;
+
+/**
+ * Benchmarks adding the markers for all shopkeepers to initially empty maps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MarkerPopulationBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int shopCount;
+
+	@Param({ "1", "4", "10" })
+	public int mapCount;
+
+	private Settings settings;
+	private List<ShopkeeperSnapshot> snapshots;
+	private StubMarkerMaps maps;
+	private MarkerManager markerManager;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+		settings = BenchmarkFixtures.loadDefaultSettings();
+		snapshots = BenchmarkFixtures.createSnapshots(shopCount);
+	}
+
+	@Setup(Level.Iteration)
+	public void setupIteration() {
+		maps = new StubMarkerMaps(mapCount);
+		markerManager = BenchmarkFixtures.createMarkerManager(settings, maps);
+	}
+
+	@Benchmark
+	public int addAllShopkeepers() {
+		for (var snapshot : snapshots) {
+			markerManager.addShopkeeper(snapshot);
+		}
+		markerManager.publishChanges();
+		return markerManager.getShopkeeperCount();
+	}
+}
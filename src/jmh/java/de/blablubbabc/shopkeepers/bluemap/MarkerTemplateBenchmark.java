@@ -0,0 +1,61 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.blablubbabc.shopkeepers.bluemap.MarkerTemplate.Placeholder;
+import de.blablubbabc.shopkeepers.bluemap.Settings.MarkerSettings;
+
+/**
+ * Benchmarks compiling and rendering the marker templates.
+ * <p>
+ * The templates are rendered via the same code path as when the markers are created.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarkerTemplateBenchmark {
+
+	private Settings settings;
+	private MarkerSettings markerSettings;
+	private ShopkeeperSnapshot snapshot;
+
+	@Setup
+	public void setup() {
+		settings = BenchmarkFixtures.loadDefaultSettings();
+		markerSettings = settings.getMarkerSettings("sell");
+		snapshot = BenchmarkFixtures.createSnapshot(1234, "Diamond Shop");
+	}
+
+	@Benchmark
+	public MarkerTemplate compileDetail() {
+		return MarkerTemplate.compile(
+				"<b>Id:</b> {shop_id}<br><b>Unique id:</b> {shop_uuid}<br><b>Type:</b> {shop_type}",
+				EnumSet.allOf(Placeholder.class)
+		);
+	}
+
+	@Benchmark
+	public String renderLabel() {
+		return MarkerManager.getMarkerLabel(snapshot, markerSettings);
+	}
+
+	@Benchmark
+	public String renderDetail() {
+		return MarkerManager.getShopkeeperDetail(snapshot, settings);
+	}
+}
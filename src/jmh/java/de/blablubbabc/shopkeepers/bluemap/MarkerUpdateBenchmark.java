@@ -0,0 +1,93 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.blablubbabc.shopkeepers.bluemap.BenchmarkFixtures.StubMarkerMaps;
+
+/**
+ * Benchmarks updating and removing the markers of single shopkeepers on populated maps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarkerUpdateBenchmark {
+
+	@Param({ "10000" })
+	public int shopCount;
+
+	@Param({ "1", "4", "10" })
+	public int mapCount;
+
+	private List<ShopkeeperSnapshot> snapshots;
+	// Alternative snapshots with a different name, i.e. a changed marker label:
+	private List<ShopkeeperSnapshot> renamedSnapshots;
+	private MarkerManager markerManager;
+	private int nextIndex = 0;
+	private boolean renamed = false;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		var settings = BenchmarkFixtures.loadDefaultSettings();
+		snapshots = BenchmarkFixtures.createSnapshots(shopCount);
+		renamedSnapshots = snapshots.stream()
+				.map(snapshot -> BenchmarkFixtures.createSnapshot(
+						snapshot.id(),
+						snapshot.name() + " (renamed)"
+				))
+				.toList();
+
+		markerManager = BenchmarkFixtures.createMarkerManager(
+				settings,
+				new StubMarkerMaps(mapCount)
+		);
+		snapshots.forEach(markerManager::addShopkeeper);
+	}
+
+	private int nextIndex() {
+		var index = nextIndex++;
+		if (nextIndex >= shopCount) {
+			nextIndex = 0;
+			renamed = !renamed;
+		}
+		return index;
+	}
+
+	@Benchmark
+	public void updateUnchanged() {
+		// Same state as the currently added marker:
+		markerManager.addShopkeeper(snapshots.get(this.nextIndex()));
+	}
+
+	@Benchmark
+	public void updateChanged() {
+		// The markers initially use the original state. We alternate between the renamed and the
+		// original state on each pass:
+		var current = renamed;
+		var index = this.nextIndex();
+		markerManager.addShopkeeper((current ? snapshots : renamedSnapshots).get(index));
+	}
+
+	@Benchmark
+	public void removeAndAdd() {
+		var snapshot = snapshots.get(this.nextIndex());
+		markerManager.removeShopkeeper(snapshot.id());
+		markerManager.addShopkeeper(snapshot);
+	}
+}
@@ -0,0 +1,52 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nisovin.shopkeepers.api.shopkeeper.Shopkeeper;
+
+/**
+ * Benchmarks capturing the shopkeeper data on the main thread.
+ * <p>
+ * Note: The stub shopkeeper is implemented via a dynamic proxy, which adds some overhead compared
+ * to the real shopkeepers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShopkeeperSnapshotBenchmark {
+
+	private Settings settings;
+	private Shopkeeper shopkeeper;
+	private ShopkeeperStrings strings;
+
+	@Setup
+	public void setup() {
+		settings = BenchmarkFixtures.loadDefaultSettings();
+		shopkeeper = BenchmarkFixtures.createShopkeeper(1234);
+		strings = new ShopkeeperStrings();
+	}
+
+	@Benchmark
+	public ShopkeeperSnapshot capture() {
+		return ShopkeeperSnapshot.capture(shopkeeper, settings, strings);
+	}
+
+	@Benchmark
+	public ShopkeeperSnapshot captureUncached() {
+		return ShopkeeperSnapshot.capture(shopkeeper, settings, new ShopkeeperStrings());
+	}
+}
@@ -0,0 +1,56 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Builds a 64-bit FNV-1a hash of a sequence of values.
+ * <p>
+ * Unlike {@link Object#hashCode()}, the resulting fingerprints are stable across server restarts
+ * and can therefore be persisted.
+ */
+final class Fingerprint {
+
+	private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+
+	private long hash = OFFSET_BASIS;
+
+	Fingerprint add(long value) {
+		for (int i = 0; i < Long.BYTES; i++) {
+			hash ^= (value & 0xFFL);
+			hash *= PRIME;
+			value >>>= 8;
+		}
+		return this;
+	}
+
+	Fingerprint add(int value) {
+		return this.add((long) value);
+	}
+
+	Fingerprint add(double value) {
+		return this.add(Double.doubleToLongBits(value));
+	}
+
+	Fingerprint add(boolean value) {
+		return this.add(value ? 1L : 0L);
+	}
+
+	Fingerprint add(@Nullable String value) {
+		if (value == null) {
+			return this.add(-1);
+		}
+
+		// Prefixed with the length, so that adjacent strings cannot be confused:
+		this.add(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= PRIME;
+		}
+		return this;
+	}
+
+	long get() {
+		return hash;
+	}
+}
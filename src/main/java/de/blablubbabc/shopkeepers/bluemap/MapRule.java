@@ -0,0 +1,175 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Determines which shopkeepers are shown on a specific BlueMap map, and at which camera distances
+ * BlueMap shows their markers.
+ *
+ * @param includedShopTypes
+ *            the ids of the shown shop types, or empty to show all shop types
+ * @param excludedShopTypes
+ *            the ids of the hidden shop types
+ * @param owners
+ *            the lower case names of the owners whose shops are shown, or empty to show the shops
+ *            of all owners
+ * @param region
+ *            the region in which shops are shown, or <code>null</code> to show shops everywhere
+ * @param minOffers
+ *            the minimum number of offers of the shown shops
+ * @param minDistance
+ *            the minimum camera distance at which BlueMap shows the markers
+ * @param maxDistance
+ *            the maximum camera distance at which BlueMap shows the markers
+ */
+public record MapRule(
+		Set<String> includedShopTypes,
+		Set<String> excludedShopTypes,
+		Set<String> owners,
+		@Nullable Region region,
+		int minOffers,
+		double minDistance,
+		double maxDistance
+) {
+
+	// The defaults of BlueMap:
+	private static final double DEFAULT_MIN_DISTANCE = 0.0D;
+	private static final double DEFAULT_MAX_DISTANCE = 10000000.0D;
+
+	/**
+	 * The rule for maps without any configured rule: Shows all shopkeepers.
+	 */
+	public static final MapRule DEFAULT = new MapRule(
+			Set.of(),
+			Set.of(),
+			Set.of(),
+			null,
+			0,
+			DEFAULT_MIN_DISTANCE,
+			DEFAULT_MAX_DISTANCE
+	);
+
+	/**
+	 * A rectangular region, in block coordinates.
+	 *
+	 * @param minX
+	 *            the minimum x coordinate, inclusive
+	 * @param minZ
+	 *            the minimum z coordinate, inclusive
+	 * @param maxX
+	 *            the maximum x coordinate, inclusive
+	 * @param maxZ
+	 *            the maximum z coordinate, inclusive
+	 */
+	public record Region(int minX, int minZ, int maxX, int maxZ) {
+
+		public boolean contains(int x, int z) {
+			return x >= minX && x <= maxX && z >= minZ && z <= maxZ;
+		}
+	}
+
+	/**
+	 * Loads a map rule from the given config section.
+	 *
+	 * @param config
+	 *            the config section
+	 * @return the loaded map rule
+	 */
+	public static MapRule load(ConfigurationSection config) {
+		Region region = null;
+		if (config.isConfigurationSection("region")) {
+			var minX = config.getInt("region.min-x");
+			var minZ = config.getInt("region.min-z");
+			var maxX = config.getInt("region.max-x");
+			var maxZ = config.getInt("region.max-z");
+			region = new Region(
+					Math.min(minX, maxX),
+					Math.min(minZ, maxZ),
+					Math.max(minX, maxX),
+					Math.max(minZ, maxZ)
+			);
+		}
+
+		return new MapRule(
+				Set.copyOf(config.getStringList("include-shop-types")),
+				Set.copyOf(config.getStringList("exclude-shop-types")),
+				toLowerCase(config.getStringList("owners")),
+				region,
+				Math.max(0, config.getInt("min-offers")),
+				Math.max(0.0D, config.getDouble("min-distance", DEFAULT_MIN_DISTANCE)),
+				Math.max(0.0D, config.getDouble("max-distance", DEFAULT_MAX_DISTANCE))
+		);
+	}
+
+	private static Set<String> toLowerCase(Iterable<String> values) {
+		var lowerCaseValues = new HashSet<String>();
+		for (var value : values) {
+			lowerCaseValues.add(value.toLowerCase(Locale.ROOT));
+		}
+		return Set.copyOf(lowerCaseValues);
+	}
+
+	/**
+	 * Adds this rule to the given fingerprint.
+	 *
+	 * @param fingerprint
+	 *            the fingerprint
+	 */
+	void addTo(Fingerprint fingerprint) {
+		addTo(fingerprint, includedShopTypes);
+		addTo(fingerprint, excludedShopTypes);
+		addTo(fingerprint, owners);
+		fingerprint.add(region != null);
+		if (region != null) {
+			fingerprint.add(region.minX())
+					.add(region.minZ())
+					.add(region.maxX())
+					.add(region.maxZ());
+		}
+		fingerprint.add(minOffers)
+				.add(minDistance)
+				.add(maxDistance);
+	}
+
+	private static void addTo(Fingerprint fingerprint, Set<String> values) {
+		// Sorted, since the iteration order of the sets is not stable across restarts:
+		var sortedValues = new TreeSet<>(values);
+		fingerprint.add(sortedValues.size());
+		sortedValues.forEach(fingerprint::add);
+	}
+
+	/**
+	 * Checks if the given shopkeeper is shown on the maps of this rule.
+	 *
+	 * @param shopkeeper
+	 *            the shopkeeper snapshot
+	 * @return <code>true</code> if the shopkeeper is shown
+	 */
+	boolean test(ShopkeeperSnapshot shopkeeper) {
+		var shopTypeId = shopkeeper.shopTypeId();
+		if (!includedShopTypes.isEmpty() && !includedShopTypes.contains(shopTypeId)) {
+			return false;
+		}
+		if (excludedShopTypes.contains(shopTypeId)) {
+			return false;
+		}
+		if (!owners.isEmpty()
+				&& !owners.contains(shopkeeper.ownerName().toLowerCase(Locale.ROOT))) {
+			return false;
+		}
+		if (region != null && !region.contains(shopkeeper.x(), shopkeeper.z())) {
+			return false;
+		}
+		// The offers count is always captured if any rule requires it:
+		if (minOffers > 0 && shopkeeper.offersCount() < minOffers) {
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,244 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Persists the rendered shopkeeper markers across server restarts.
+ * <p>
+ * This allows us to restore the markers right away when BlueMap is enabled, instead of having to
+ * wait for the data of all shopkeepers to be captured and rendered again. The restored markers are
+ * then reconciled with the current shopkeepers in the background.
+ * <p>
+ * Each cached marker remembers the fingerprint of the settings that it was rendered with, so that
+ * markers that were rendered with different settings are rendered again during the
+ * reconciliation. Corrupted caches are ignored.
+ */
+final class MarkerCache {
+
+	/**
+	 * A cached shopkeeper marker.
+	 *
+	 * @param shopkeeper
+	 *            the shopkeeper snapshot that the marker was rendered for
+	 * @param state
+	 *            the rendered marker state
+	 * @param settingsFingerprint
+	 *            the {@link Settings#getMarkerFingerprint() fingerprint} of the settings that the
+	 *            marker was rendered with
+	 */
+	record Entry(ShopkeeperSnapshot shopkeeper, MarkerState state, long settingsFingerprint) {
+	}
+
+	/**
+	 * A loaded cached shopkeeper marker.
+	 *
+	 * @param entry
+	 *            the cache entry
+	 * @param fingerprint
+	 *            the fingerprint of the cached shopkeeper snapshot
+	 */
+	record LoadedEntry(Entry entry, long fingerprint) {
+	}
+
+	private static final int MAGIC = 0x534B424D; // "SKBM"
+	private static final int VERSION = 1;
+	// The lengths are read from the file. Larger lengths indicate a corrupted file, and are
+	// rejected instead of being allocated.
+	private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+	private final Logger logger;
+	private final Path file;
+
+	MarkerCache(Logger logger, Path file) {
+		this.logger = logger;
+		this.file = file;
+	}
+
+	/**
+	 * Saves the given entries, replacing any previously saved entries.
+	 * <p>
+	 * The entries are first written to a temporary file, which then replaces the cache file.
+	 *
+	 * @param entries
+	 *            the entries
+	 */
+	void save(Collection<Entry> entries) {
+		var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			Files.createDirectories(file.getParent());
+			try (var out = new DataOutputStream(new BufferedOutputStream(
+					new GZIPOutputStream(Files.newOutputStream(tempFile))
+			))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(entries.size());
+				for (var entry : entries) {
+					writeEntry(out, entry);
+				}
+			}
+			Files.move(
+					tempFile,
+					file,
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE
+			);
+			logger.info("Saved " + entries.size() + " BlueMap markers to the marker cache.");
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to save the marker cache: " + file, e);
+			try {
+				Files.deleteIfExists(tempFile);
+			} catch (IOException e2) {
+				// Ignored.
+			}
+		}
+	}
+
+	// Also used by the shared marker store.
+	static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+		var shopkeeper = entry.shopkeeper();
+		out.writeLong(shopkeeper.fingerprint());
+		out.writeLong(entry.settingsFingerprint());
+		out.writeInt(shopkeeper.id());
+		out.writeLong(shopkeeper.uniqueId().getMostSignificantBits());
+		out.writeLong(shopkeeper.uniqueId().getLeastSignificantBits());
+		writeNullableString(out, shopkeeper.worldName());
+		out.writeInt(shopkeeper.x());
+		out.writeInt(shopkeeper.y());
+		out.writeInt(shopkeeper.z());
+		writeString(out, shopkeeper.shopTypeId());
+		writeString(out, shopkeeper.shopTypeName());
+		writeString(out, shopkeeper.shopObjectTypeName());
+		writeString(out, shopkeeper.name());
+		writeString(out, shopkeeper.ownerName());
+		out.writeInt(shopkeeper.offersCount());
+
+		var state = entry.state();
+		writeString(out, state.label());
+		writeString(out, state.detail());
+		writeString(out, state.icon());
+		out.writeInt(state.anchorX());
+		out.writeInt(state.anchorY());
+		out.writeDouble(state.x());
+		out.writeDouble(state.y());
+		out.writeDouble(state.z());
+		out.writeDouble(state.minDistance());
+		out.writeDouble(state.maxDistance());
+	}
+
+	// DataOutputStream#writeUTF is limited to 64 KB.
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		var bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeNullableString(
+			DataOutputStream out,
+			@Nullable String value
+	) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			writeString(out, value);
+		}
+	}
+
+	/**
+	 * Loads the cached entries.
+	 *
+	 * @return the loaded entries, or an empty list if there is no cache, or if the cache cannot be
+	 *         read
+	 */
+	List<LoadedEntry> load() {
+		if (!Files.isRegularFile(file)) {
+			return List.of();
+		}
+
+		try (var in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(Files.newInputStream(file))
+		))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				logger.info("Ignoring the marker cache: Unsupported format.");
+				return List.of();
+			}
+
+			var count = in.readInt();
+			if (count < 0) {
+				throw new IOException("Invalid entry count: " + count);
+			}
+
+			// Not presized: The count is only trusted once the entries have been read.
+			var entries = new ArrayList<LoadedEntry>();
+			for (int i = 0; i < count; i++) {
+				entries.add(readEntry(in));
+			}
+			return entries;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Ignoring the marker cache: Failed to read " + file, e);
+			return List.of();
+		}
+	}
+
+	static LoadedEntry readEntry(DataInputStream in) throws IOException {
+		var fingerprint = in.readLong();
+		var settingsFingerprint = in.readLong();
+		var shopkeeper = new ShopkeeperSnapshot(
+				in.readInt(),
+				new UUID(in.readLong(), in.readLong()),
+				readNullableString(in),
+				in.readInt(),
+				in.readInt(),
+				in.readInt(),
+				readString(in),
+				readString(in),
+				readString(in),
+				readString(in),
+				readString(in),
+				in.readInt()
+		);
+		var state = new MarkerState(
+				readString(in),
+				readString(in),
+				readString(in),
+				in.readInt(),
+				in.readInt(),
+				in.readDouble(),
+				in.readDouble(),
+				in.readDouble(),
+				in.readDouble(),
+				in.readDouble()
+		);
+		return new LoadedEntry(new Entry(shopkeeper, state, settingsFingerprint), fingerprint);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		var length = in.readInt();
+		if (length < 0 || length > MAX_STRING_LENGTH) {
+			throw new IOException("Invalid string length: " + length);
+		}
+		var bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? readString(in) : null;
+	}
+}
@@ -0,0 +1,295 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes the changes of the shopkeeper markers to an append-only feed inside the BlueMap web
+ * root, so that web clients can apply the changes incrementally instead of reloading the whole
+ * marker set.
+ * <p>
+ * The feed is written to <code>assets/shopkeepers-feed/changes.jsonl</code>. Each line is a JSON
+ * object:
+ * <ul>
+ * <li>The first line is the header: <code>{"epoch":..., "start":...}</code>. The epoch changes
+ * whenever the markers for all shopkeepers were added again. Clients then need to reload all
+ * markers. <code>start</code> is the sequence number of the first change in the file.
+ * <li>Each subsequent line is a change: <code>{"seq":..., "type":"put", "id":..., "marker":...,
+ * "markerSet":..., "world":..., "label":..., "detail":..., "icon":..., "anchor":..., "position":
+ * ...}</code>, or <code>{"seq":..., "type":"remove", "id":..., "marker":...}</code>.
+ * </ul>
+ * Once the file contains the configured maximum number of changes, it is rolled over to
+ * <code>changes.previous.jsonl</code>, and a new file is started with the next sequence number.
+ * <p>
+ * The writes are rate-limited: The changes are collected and written at most once per write
+ * interval. Multiple changes to the same shopkeeper within one interval are coalesced into a
+ * single change. Changes while the markers for all shopkeepers are added are not written, since
+ * clients need to reload all markers anyway once the new epoch starts.
+ * <p>
+ * Not thread-safe: Only used on the marker thread.
+ */
+final class MarkerChangeFeed implements MarkerExporter {
+
+	private static final String FEED_DIRECTORY = "assets/shopkeepers-feed";
+	private static final String FEED_FILE = "changes.jsonl";
+	private static final String PREVIOUS_FEED_FILE = "changes.previous.jsonl";
+
+	private final Logger logger;
+	private final long writeIntervalNanos;
+	private final int maxChangesPerFile;
+	private final Supplier<Settings> settings;
+
+	// Null until the BlueMap API is enabled:
+	private @Nullable Path webRoot = null;
+
+	// Shopkeeper id -> current markers. Used to skip unchanged markers.
+	private final Map<Integer, MarkerCache.Entry> current = new HashMap<>();
+	// Shopkeeper id -> new markers, or null if removed. In the order of the first change.
+	private final Map<Integer, MarkerCache.@Nullable Entry> pendingChanges = new LinkedHashMap<>();
+	private boolean resyncing = false;
+	// Set once the markers for all shopkeepers have been added. Afterwards, a new epoch is
+	// started whenever the markers for all shopkeepers are added again.
+	private boolean synced = false;
+	private boolean newEpoch = false;
+
+	private long epoch = 0L;
+	private long nextSequence = 0L;
+	private int fileChanges = 0;
+	private long lastWriteNanos;
+
+	/**
+	 * Creates a new change feed.
+	 *
+	 * @param logger
+	 *            the logger
+	 * @param writeIntervalMillis
+	 *            the minimum interval in milliseconds between writes
+	 * @param maxChangesPerFile
+	 *            the number of changes after which the file is rolled over, positive
+	 * @param settings
+	 *            the settings
+	 */
+	MarkerChangeFeed(
+			Logger logger,
+			long writeIntervalMillis,
+			int maxChangesPerFile,
+			Supplier<Settings> settings
+	) {
+		this.logger = logger;
+		this.writeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(writeIntervalMillis);
+		this.maxChangesPerFile = maxChangesPerFile;
+		this.settings = settings;
+		this.lastWriteNanos = System.nanoTime() - writeIntervalNanos;
+	}
+
+	/**
+	 * Sets the BlueMap web root to write the feed to.
+	 *
+	 * @param webRoot
+	 *            the web root
+	 */
+	void setWebRoot(Path webRoot) {
+		if (webRoot.equals(this.webRoot)) {
+			return;
+		}
+
+		this.webRoot = webRoot;
+		// The previous feed file is not continued:
+		newEpoch = synced;
+	}
+
+	@Override
+	public void put(MarkerCache.Entry entry) {
+		var shopkeeperId = entry.shopkeeper().id();
+		var previous = current.put(shopkeeperId, entry);
+		if (entry.equals(previous)) {
+			return;
+		}
+
+		if (synced && !resyncing) {
+			pendingChanges.put(shopkeeperId, entry);
+		}
+	}
+
+	@Override
+	public void remove(int shopkeeperId) {
+		if (current.remove(shopkeeperId) == null) {
+			return;
+		}
+
+		if (synced && !resyncing) {
+			pendingChanges.put(shopkeeperId, null);
+		}
+	}
+
+	@Override
+	public void beginResync() {
+		resyncing = true;
+		pendingChanges.clear();
+		// The markers of shopkeepers that are not added again are removed by the marker manager
+		// anyway. We only track the markers that are added during the resync:
+		current.clear();
+	}
+
+	@Override
+	public void endResync() {
+		if (!resyncing) {
+			return;
+		}
+		resyncing = false;
+
+		// Clients need to reload all markers:
+		synced = true;
+		newEpoch = true;
+	}
+
+	/**
+	 * Writes the pending changes, unless the previous write was less than the write interval
+	 * ago.
+	 */
+	@Override
+	public void flush() {
+		if (!newEpoch && pendingChanges.isEmpty()) {
+			return;
+		}
+
+		var now = System.nanoTime();
+		if (now - lastWriteNanos < writeIntervalNanos) {
+			// Written by a later flush:
+			return;
+		}
+
+		var webRoot = this.webRoot;
+		if (webRoot == null) {
+			return;
+		}
+
+		lastWriteNanos = now;
+		var feedDirectory = webRoot.resolve(FEED_DIRECTORY);
+		var feedFile = feedDirectory.resolve(FEED_FILE);
+		try {
+			Files.createDirectories(feedDirectory);
+			if (newEpoch) {
+				newEpoch = false;
+				// Any pending changes are already part of the markers that clients reload:
+				pendingChanges.clear();
+				epoch = Math.max(epoch + 1, System.currentTimeMillis());
+				nextSequence = 0L;
+				this.startFile(feedDirectory);
+				return;
+			}
+
+			if (fileChanges >= maxChangesPerFile) {
+				this.startFile(feedDirectory);
+			}
+
+			var lines = new StringBuilder();
+			for (var change : pendingChanges.entrySet()) {
+				lines.append(this.formatChange(nextSequence++, change.getKey(), change.getValue()))
+						.append('\n');
+			}
+			fileChanges += pendingChanges.size();
+			pendingChanges.clear();
+
+			// Written at once, so that clients rarely observe partially written changes:
+			Files.writeString(
+					feedFile,
+					lines,
+					StandardCharsets.UTF_8,
+					StandardOpenOption.APPEND
+			);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to write the marker change feed: " + feedFile, e);
+			// Clients need to reload all markers:
+			newEpoch = true;
+		}
+	}
+
+	// Rolls the current file over and starts a new file with the next sequence number. The feed
+	// file is replaced atomically, so that it always exists and starts with a header once it has
+	// been created.
+	private void startFile(Path feedDirectory) throws IOException {
+		var header = new StringWriter();
+		try (var out = new JsonWriter(header)) {
+			out.beginObject();
+			out.name("epoch").value(epoch);
+			out.name("start").value(nextSequence);
+			out.endObject();
+		}
+		var feedFile = feedDirectory.resolve(FEED_FILE);
+		var tempFile = feedDirectory.resolve(FEED_FILE + ".tmp");
+		Files.writeString(tempFile, header + "\n", StandardCharsets.UTF_8);
+
+		// Keep a copy of the current file as the previous file. We are the only writer of the
+		// feed file, so the copy is complete.
+		if (Files.exists(feedFile)) {
+			var previousFile = feedDirectory.resolve(PREVIOUS_FEED_FILE);
+			var previousTempFile = feedDirectory.resolve(PREVIOUS_FEED_FILE + ".tmp");
+			Files.copy(feedFile, previousTempFile, StandardCopyOption.REPLACE_EXISTING);
+			move(previousTempFile, previousFile);
+		}
+
+		move(tempFile, feedFile);
+		fileChanges = 0;
+	}
+
+	private static void move(Path source, Path target) throws IOException {
+		Files.move(
+				source,
+				target,
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE
+		);
+	}
+
+	private String formatChange(
+			long sequence,
+			int shopkeeperId,
+			MarkerCache.@Nullable Entry entry
+	) throws IOException {
+		var json = new StringWriter();
+		try (var out = new JsonWriter(json)) {
+			out.beginObject();
+			out.name("seq").value(sequence);
+			out.name("type").value(entry != null ? "put" : "remove");
+			out.name("id").value(shopkeeperId);
+			out.name("marker").value(MarkerManager.getMarkerId(shopkeeperId));
+			if (entry != null) {
+				var shopkeeper = entry.shopkeeper();
+				var state = entry.state();
+				out.name("markerSet").value(settings.get().getMarkerSetId(shopkeeper.shopTypeId()));
+				out.name("world").value(shopkeeper.worldName());
+				out.name("label").value(state.label());
+				out.name("detail").value(state.detail());
+				out.name("icon").value(state.icon());
+				out.name("anchor").beginObject()
+						.name("x").value(state.anchorX())
+						.name("y").value(state.anchorY())
+						.endObject();
+				out.name("position").beginObject()
+						.name("x").value(state.x())
+						.name("y").value(state.y())
+						.name("z").value(state.z())
+						.endObject();
+			}
+			out.endObject();
+		}
+		return json.toString();
+	}
+}
@@ -0,0 +1,281 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import de.blablubbabc.shopkeepers.bluemap.MarkerTemplate.Placeholder;
+import de.blablubbabc.shopkeepers.bluemap.Settings.ClusterSettings;
+
+/**
+ * Groups the shopkeeper markers of the maps with a specific {@link MapRule} by world and grid
+ * cell.
+ * <p>
+ * The clusters are maintained incrementally as shopkeepers are added, moved and removed. Changed
+ * clusters are marked as dirty and only rendered once their changes are published, so that a
+ * batch of changes to the same cluster results in a single marker update.
+ * <p>
+ * Not thread-safe: Only used by the {@link MarkerManager} on the marker thread.
+ */
+class MarkerClusters {
+
+	/**
+	 * Identifies a grid cell.
+	 *
+	 * @param worldName
+	 *            the world name
+	 * @param cellX
+	 *            the cell x coordinate
+	 * @param cellZ
+	 *            the cell z coordinate
+	 */
+	private record CellKey(String worldName, int cellX, int cellZ) {
+	}
+
+	/**
+	 * The shopkeepers inside a grid cell.
+	 */
+	static final class Cluster {
+
+		private final CellKey cellKey;
+		// Shopkeeper id -> marker state. Sorted by id for a stable order in the cluster detail.
+		private final Map<Integer, MarkerState> shopkeepers = new TreeMap<>();
+		private double sumX = 0.0D;
+		private double sumY = 0.0D;
+		private double sumZ = 0.0D;
+
+		// The currently published markers, or null if not published:
+		private MarkerManager.@Nullable AddedMarkers publishedMarkers = null;
+
+		private Cluster(CellKey cellKey) {
+			this.cellKey = cellKey;
+		}
+
+		String getWorldName() {
+			return cellKey.worldName();
+		}
+
+		String getMarkerId() {
+			return "cluster_" + cellKey.cellX() + "_" + cellKey.cellZ();
+		}
+
+		boolean isEmpty() {
+			return shopkeepers.isEmpty();
+		}
+
+		MarkerManager.@Nullable AddedMarkers getPublishedMarkers() {
+			return publishedMarkers;
+		}
+
+		void setPublishedMarkers(MarkerManager.@Nullable AddedMarkers publishedMarkers) {
+			this.publishedMarkers = publishedMarkers;
+		}
+
+		private void put(int shopkeeperId, MarkerState state) {
+			var previous = shopkeepers.put(shopkeeperId, state);
+			if (previous != null) {
+				this.subtractPosition(previous);
+			}
+			this.addPosition(state);
+		}
+
+		private void remove(int shopkeeperId) {
+			var previous = shopkeepers.remove(shopkeeperId);
+			if (previous != null) {
+				this.subtractPosition(previous);
+			}
+		}
+
+		private void addPosition(MarkerState state) {
+			sumX += state.x();
+			sumY += state.y();
+			sumZ += state.z();
+		}
+
+		private void subtractPosition(MarkerState state) {
+			sumX -= state.x();
+			sumY -= state.y();
+			sumZ -= state.z();
+		}
+
+		/**
+		 * Renders the cluster marker.
+		 * <p>
+		 * A cluster with a single shopkeeper uses the shopkeeper's own marker. Otherwise, the
+		 * cluster marker is located at the center of its shopkeepers, and its detail lists the
+		 * labels of its shopkeepers.
+		 *
+		 * @param clusterSettings
+		 *            the cluster settings
+		 * @return the marker state
+		 */
+		MarkerState render(ClusterSettings clusterSettings) {
+			assert !shopkeepers.isEmpty();
+			var count = shopkeepers.size();
+			if (count == 1) {
+				return shopkeepers.values().iterator().next();
+			}
+
+			var countText = Integer.toString(count);
+			var label = clusterSettings.labelTemplate().render(
+					placeholder -> (placeholder == Placeholder.SHOP_COUNT) ? countText : ""
+			);
+
+			var maxEntries = clusterSettings.maxDetailEntries();
+			var detail = new StringBuilder();
+			var entries = 0;
+			for (var shopkeeperState : shopkeepers.values()) {
+				if (entries > 0) {
+					detail.append("<br>");
+				}
+				if (entries == maxEntries) {
+					detail.append("... (").append(count - entries).append(" more)");
+					break;
+				}
+				// The labels contain unescaped user input (e.g. the shopkeeper name):
+				appendEscapedHtml(detail, shopkeeperState.label());
+				entries++;
+			}
+
+			// All shopkeepers of the same map rule use the same distance range:
+			var firstState = shopkeepers.values().iterator().next();
+			return new MarkerState(
+					label,
+					detail.toString(),
+					clusterSettings.icon(),
+					clusterSettings.anchorX(),
+					clusterSettings.anchorY(),
+					sumX / count,
+					sumY / count,
+					sumZ / count,
+					firstState.minDistance(),
+					firstState.maxDistance()
+			);
+		}
+	}
+
+	private static void appendEscapedHtml(StringBuilder builder, String text) {
+		for (int i = 0; i < text.length(); i++) {
+			var c = text.charAt(i);
+			switch (c) {
+				case '<' -> builder.append("&lt;");
+				case '>' -> builder.append("&gt;");
+				case '&' -> builder.append("&amp;");
+				case '"' -> builder.append("&quot;");
+				case '\'' -> builder.append("&#39;");
+				default -> builder.append(c);
+			}
+		}
+	}
+
+	private final int cellSize;
+
+	private final Map<CellKey, Cluster> clusters = new HashMap<>();
+	// Shopkeeper id -> cluster
+	private final Map<Integer, Cluster> shopkeeperClusters = new HashMap<>();
+	private final Set<Cluster> dirtyClusters = new LinkedHashSet<>();
+
+	MarkerClusters(ClusterSettings clusterSettings) {
+		this.cellSize = clusterSettings.cellSize();
+	}
+
+	/**
+	 * Gets the number of clustered shopkeepers.
+	 *
+	 * @return the number of shopkeepers
+	 */
+	int getShopkeeperCount() {
+		return shopkeeperClusters.size();
+	}
+
+	/**
+	 * Adds or updates the given shopkeeper.
+	 *
+	 * @param shopkeeperId
+	 *            the shopkeeper id
+	 * @param worldName
+	 *            the world name
+	 * @param state
+	 *            the shopkeeper's marker state
+	 */
+	void put(int shopkeeperId, String worldName, MarkerState state) {
+		var cellKey = new CellKey(
+				worldName,
+				Math.floorDiv((int) Math.floor(state.x()), cellSize),
+				Math.floorDiv((int) Math.floor(state.z()), cellSize)
+		);
+
+		var previousCluster = shopkeeperClusters.get(shopkeeperId);
+		if (previousCluster != null && !previousCluster.cellKey.equals(cellKey)) {
+			// Moved to a different cell:
+			previousCluster.remove(shopkeeperId);
+			dirtyClusters.add(previousCluster);
+			previousCluster = null;
+		}
+
+		var cluster = previousCluster;
+		if (cluster == null) {
+			cluster = clusters.computeIfAbsent(cellKey, Cluster::new);
+			shopkeeperClusters.put(shopkeeperId, cluster);
+		} else if (state.equals(cluster.shopkeepers.get(shopkeeperId))) {
+			return; // Unchanged
+		}
+
+		cluster.put(shopkeeperId, state);
+		dirtyClusters.add(cluster);
+	}
+
+	/**
+	 * Removes the specified shopkeeper.
+	 *
+	 * @param shopkeeperId
+	 *            the shopkeeper id
+	 */
+	void remove(int shopkeeperId) {
+		var cluster = shopkeeperClusters.remove(shopkeeperId);
+		if (cluster == null) {
+			return;
+		}
+
+		cluster.remove(shopkeeperId);
+		dirtyClusters.add(cluster);
+	}
+
+	/**
+	 * Gets and resets the clusters that changed since the last call.
+	 * <p>
+	 * Clusters that became empty are removed. Their markers still need to be removed by the
+	 * caller.
+	 *
+	 * @return the changed clusters
+	 */
+	List<Cluster> takeDirtyClusters() {
+		if (dirtyClusters.isEmpty()) {
+			return List.of();
+		}
+
+		var changed = new ArrayList<>(dirtyClusters);
+		dirtyClusters.clear();
+		for (var cluster : changed) {
+			if (cluster.isEmpty()) {
+				clusters.remove(cluster.cellKey);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes all clusters, without removing their markers.
+	 */
+	void clear() {
+		clusters.clear();
+		shopkeeperClusters.clear();
+		dirtyClusters.clear();
+	}
+}
@@ -0,0 +1,50 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+/**
+ * Exports the rendered shopkeeper markers to somewhere other than the maps of the enabled BlueMap
+ * API.
+ * <p>
+ * The exported markers outlive the BlueMap API: When the markers for all shopkeepers are added
+ * again, the exported markers are {@link #beginResync() resynced}, and the exported markers of
+ * shopkeepers that no longer exist are removed once all shopkeepers have been added.
+ * <p>
+ * Only used on the marker thread.
+ */
+interface MarkerExporter {
+
+	/**
+	 * Exports the given markers.
+	 * <p>
+	 * The marker state uses the default distance range.
+	 *
+	 * @param entry
+	 *            the markers of a shopkeeper
+	 */
+	void put(MarkerCache.Entry entry);
+
+	/**
+	 * Removes the exported markers of the specified shopkeeper.
+	 *
+	 * @param shopkeeperId
+	 *            the shopkeeper id
+	 */
+	void remove(int shopkeeperId);
+
+	/**
+	 * Starts a resync: The exported markers of the shopkeepers that are not exported again until
+	 * {@link #endResync()} are removed.
+	 */
+	void beginResync();
+
+	/**
+	 * Ends the resync and removes the exported markers of the shopkeepers that no longer exist.
+	 */
+	void endResync();
+
+	/**
+	 * Writes the pending changes.
+	 * <p>
+	 * Called after each marker operation.
+	 */
+	void flush();
+}
@@ -0,0 +1,1009 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import de.blablubbabc.shopkeepers.bluemap.MarkerTemplate.Placeholder;
+import de.blablubbabc.shopkeepers.bluemap.Settings.ClusterSettings;
+import de.blablubbabc.shopkeepers.bluemap.Settings.MarkerSettings;
+
+import de.bluecolored.bluemap.api.BlueMapMap;
+import de.bluecolored.bluemap.api.markers.Marker;
+import de.bluecolored.bluemap.api.markers.MarkerSet;
+import de.bluecolored.bluemap.api.markers.POIMarker;
+
+/**
+ * Creates, updates and removes the shopkeeper markers on the maps of one enabled BlueMap API.
+ * <p>
+ * Not thread-safe: Only used on the marker thread. Does not access the Shopkeepers API.
+ */
+class MarkerManager {
+
+	static final String MARKERSET_ID = "shopkeepers.markerset";
+
+	/**
+	 * The markers that we added for a shopkeeper or cluster.
+	 *
+	 * @param mapRule
+	 *            the map rule of the maps
+	 * @param markerSetId
+	 *            the id of the marker set that contains the markers
+	 * @param mapIds
+	 *            the ids of the BlueMap maps that we added the markers to, not empty
+	 * @param state
+	 *            the state of the markers
+	 * @param marker
+	 *            the marker instance that is shared by all these maps
+	 */
+	record AddedMarkers(
+			MapRule mapRule,
+			String markerSetId,
+			List<String> mapIds,
+			MarkerState state,
+			POIMarker marker
+	) {
+	}
+
+	/**
+	 * The maps of a world that share the same map rule.
+	 *
+	 * @param mapRule
+	 *            the map rule
+	 * @param maps
+	 *            the maps, not empty
+	 */
+	private record MapLayer(MapRule mapRule, Collection<BlueMapMap> maps) {
+	}
+
+	/**
+	 * Identifies a marker set that is staged during a rebuild.
+	 *
+	 * @param mapId
+	 *            the map id
+	 * @param markerSetId
+	 *            the marker set id
+	 */
+	private record StagedMarkerSet(String mapId, String markerSetId) {
+	}
+
+	/**
+	 * The clusters of the markers in the same marker set, on the maps with the same map rule.
+	 *
+	 * @param mapRule
+	 *            the map rule
+	 * @param markerSetId
+	 *            the marker set id
+	 */
+	private record ClusterGroup(MapRule mapRule, String markerSetId) {
+	}
+
+	private final Logger logger;
+	private final Supplier<Settings> settings;
+	private final MarkerMaps maps;
+	private final MarkerMetrics metrics;
+	// Receive our rendered markers, e.g. for the shared marker store. Can be empty.
+	private final List<MarkerExporter> exporters;
+
+	// Shopkeeper id -> the markers that we added for the shopkeeper, one per map rule.
+	// This allows us to remove the markers again without having to check all worlds and maps,
+	// and to skip marker updates if nothing changed.
+	private final Map<Integer, List<AddedMarkers>> shopkeeperMarkers = new HashMap<>();
+	// Only set if clustering is enabled. The clustering and map rule settings are fixed for the
+	// lifetime of this marker manager, since changing them requires a restart of the integration.
+	private final @Nullable ClusterSettings clusterSettings;
+	// Cluster group -> clusters
+	private final Map<ClusterGroup, MarkerClusters> clusters = new HashMap<>();
+	// The ids of the clustered shopkeepers:
+	private final Set<Integer> clusteredShopkeepers = new HashSet<>();
+
+	private final boolean markerCacheEnabled;
+	// Shopkeeper id -> the shopkeeper snapshot and marker state that we last rendered. Used for
+	// the marker cache, and to detect shopkeepers that only moved.
+	private final Map<Integer, MarkerCache.Entry> renderedShopkeepers = new HashMap<>();
+	// Shopkeeper id -> fingerprint of the shopkeeper snapshot, for the shopkeepers whose markers
+	// were restored from the marker cache and that have not yet been reconciled.
+	private final Map<Integer, Long> restoredFingerprints = new HashMap<>();
+
+	// The markers that we staged for each marker set during a rebuild. Null if there is no rebuild
+	// in progress.
+	private @Nullable Map<StagedMarkerSet, Map<String, Marker>> stagedMarkers = null;
+
+	MarkerManager(
+			Logger logger,
+			Supplier<Settings> settings,
+			MarkerMaps maps,
+			MarkerMetrics metrics,
+			List<MarkerExporter> exporters
+	) {
+		this.logger = logger;
+		this.settings = settings;
+		this.maps = maps;
+		this.metrics = metrics;
+		this.exporters = exporters;
+
+		this.clusterSettings = settings.get().getClusterSettings();
+		this.markerCacheEnabled = settings.get().isMarkerCacheEnabled();
+	}
+
+	private void debug(String message) {
+		if (!settings.get().isDebugging()) {
+			return;
+		}
+
+		logger.info(message);
+	}
+
+	private MarkerSet createMarkerSet(String markerSetId) {
+		var markerSetSettings = settings.get().getMarkerSetSettings(markerSetId);
+		return MarkerSet.builder()
+				.label(markerSetSettings.label())
+				.defaultHidden(markerSetSettings.defaultHidden())
+				.sorting(markerSetSettings.sorting())
+				.toggleable(true)
+				.build();
+	}
+
+	private MarkerSet getOrCreateMarkerSet(BlueMapMap map, String markerSetId) {
+		return map.getMarkerSets().computeIfAbsent(markerSetId, this::createMarkerSet);
+	}
+
+	private @Nullable MarkerSet getMarkerSet(BlueMapMap map, String markerSetId) {
+		return map.getMarkerSets().get(markerSetId);
+	}
+
+	private static boolean isOwnMarkerSet(String markerSetId) {
+		return markerSetId.equals(MARKERSET_ID) || markerSetId.startsWith(MARKERSET_ID + ".");
+	}
+
+	// Also includes the marker sets of shop types that no longer have markers.
+	private static List<String> getOwnMarkerSetIds(BlueMapMap map) {
+		var markerSetIds = new ArrayList<String>();
+		for (var markerSetId : map.getMarkerSets().keySet()) {
+			if (isOwnMarkerSet(markerSetId)) {
+				markerSetIds.add(markerSetId);
+			}
+		}
+		return markerSetIds;
+	}
+
+	// Routes to the staged markers during a rebuild.
+	private @Nullable Marker getMapMarker(BlueMapMap map, String markerSetId, String markerId) {
+		if (stagedMarkers != null) {
+			var markers = stagedMarkers.get(new StagedMarkerSet(map.getId(), markerSetId));
+			return (markers != null) ? markers.get(markerId) : null;
+		}
+
+		var markerSet = this.getMarkerSet(map, markerSetId);
+		return (markerSet != null) ? markerSet.get(markerId) : null;
+	}
+
+	// Routes to the staged markers during a rebuild.
+	private void putMapMarker(BlueMapMap map, String markerSetId, String markerId, Marker marker) {
+		if (stagedMarkers != null) {
+			stagedMarkers.computeIfAbsent(
+					new StagedMarkerSet(map.getId(), markerSetId),
+					key -> new HashMap<>()
+			).put(markerId, marker);
+			return;
+		}
+
+		this.getOrCreateMarkerSet(map, markerSetId).put(markerId, marker);
+	}
+
+	// Routes to the staged markers during a rebuild.
+	private @Nullable Marker removeMapMarker(BlueMapMap map, String markerSetId, String markerId) {
+		if (stagedMarkers != null) {
+			var markers = stagedMarkers.get(new StagedMarkerSet(map.getId(), markerSetId));
+			return (markers != null) ? markers.remove(markerId) : null;
+		}
+
+		var markerSet = this.getMarkerSet(map, markerSetId);
+		return (markerSet != null) ? markerSet.getMarkers().remove(markerId) : null;
+	}
+
+	/**
+	 * Starts a rebuild of all markers, if there are currently no markers.
+	 * <p>
+	 * During a rebuild, all marker changes are staged off to the side instead of being applied to
+	 * the live marker sets of the maps. Once the rebuild is {@link #commitRebuild() committed},
+	 * the staged markers replace the marker sets of the maps in a single step. BlueMap therefore
+	 * never observes a partially populated marker set, and the marker sets are not repeatedly
+	 * resized while the markers are added.
+	 * <p>
+	 * Has no effect if a rebuild is already in progress, or if there are already markers, since
+	 * these would be hidden until the rebuild is committed.
+	 *
+	 * @return <code>true</code> if a new rebuild was started
+	 */
+	boolean beginRebuild() {
+		if (stagedMarkers != null) {
+			return false;
+		}
+		if (!shopkeeperMarkers.isEmpty() || !clusteredShopkeepers.isEmpty()) {
+			return false;
+		}
+
+		stagedMarkers = new HashMap<>();
+		this.debug("Started rebuilding the BlueMap markers.");
+		return true;
+	}
+
+	/**
+	 * Commits the rebuild that is currently in progress, if any.
+	 * <p>
+	 * The staged markers of each map are swapped into the map as new marker sets.
+	 */
+	void commitRebuild() {
+		if (stagedMarkers == null) {
+			return;
+		}
+
+		// Also stage the pending cluster changes:
+		this.publishChanges();
+
+		var stagedMarkers = this.stagedMarkers;
+		this.stagedMarkers = null;
+		var markerCount = 0;
+		for (var entry : stagedMarkers.entrySet()) {
+			var stagedMarkerSet = entry.getKey();
+			var markers = entry.getValue();
+			var map = maps.getMap(stagedMarkerSet.mapId());
+			if (map == null || markers.isEmpty()) {
+				continue;
+			}
+
+			// Adding all markers at once presizes the marker set's map:
+			var markerSet = this.createMarkerSet(stagedMarkerSet.markerSetId());
+			markerSet.getMarkers().putAll(markers);
+			map.getMarkerSets().put(stagedMarkerSet.markerSetId(), markerSet);
+			markerCount += markers.size();
+		}
+
+		// Remove any other marker sets:
+		for (BlueMapMap map : maps.getAllMaps()) {
+			for (var markerSetId : getOwnMarkerSetIds(map)) {
+				var markers = stagedMarkers.get(new StagedMarkerSet(map.getId(), markerSetId));
+				if (markers == null || markers.isEmpty()) {
+					map.getMarkerSets().remove(markerSetId);
+				}
+			}
+		}
+
+		this.debug("Published " + markerCount + " rebuilt BlueMap markers.");
+	}
+
+	/**
+	 * Gets the number of shopkeepers that we currently added markers for.
+	 *
+	 * @return the number of shopkeepers
+	 */
+	int getShopkeeperCount() {
+		if (clusterSettings != null) {
+			return clusteredShopkeepers.size();
+		}
+		return shopkeeperMarkers.size();
+	}
+
+	/**
+	 * Counts our markers on each map.
+	 *
+	 * @return map id -&gt; number of markers, only contains the maps with markers
+	 */
+	Map<String, Integer> countMarkersPerMap() {
+		var markersPerMap = new TreeMap<String, Integer>();
+		for (BlueMapMap map : maps.getAllMaps()) {
+			var markerCount = 0;
+			for (var markerSetId : getOwnMarkerSetIds(map)) {
+				markerCount += map.getMarkerSets().get(markerSetId).getMarkers().size();
+			}
+			if (markerCount > 0) {
+				markersPerMap.put(map.getId(), markerCount);
+			}
+		}
+		return markersPerMap;
+	}
+
+	/**
+	 * Applies the current marker set settings (e.g. the labels) to our marker sets on all maps.
+	 * <p>
+	 * Empty marker sets of shop types that no longer have markers are removed.
+	 */
+	void updateMarkerSets() {
+		var settings = this.settings.get();
+		for (BlueMapMap map : maps.getAllMaps()) {
+			for (var markerSetId : getOwnMarkerSetIds(map)) {
+				var markerSet = map.getMarkerSets().get(markerSetId);
+				if (markerSet.getMarkers().isEmpty()) {
+					map.getMarkerSets().remove(markerSetId);
+					continue;
+				}
+
+				var markerSetSettings = settings.getMarkerSetSettings(markerSetId);
+				markerSet.setLabel(markerSetSettings.label());
+				markerSet.setDefaultHidden(markerSetSettings.defaultHidden());
+				markerSet.setSorting(markerSetSettings.sorting());
+			}
+		}
+	}
+
+	/**
+	 * Removes our marker sets, and thereby all shopkeeper markers, from all maps.
+	 */
+	void removeAllShopkeepers() {
+		var markerCount = 0;
+		for (BlueMapMap map : maps.getAllMaps()) {
+			for (var markerSetId : getOwnMarkerSetIds(map)) {
+				var markerSet = map.getMarkerSets().remove(markerSetId);
+				if (markerSet != null) {
+					markerCount += markerSet.getMarkers().size();
+				}
+			}
+		}
+		shopkeeperMarkers.clear();
+		stagedMarkers = null;
+		clusters.clear();
+		clusteredShopkeepers.clear();
+		renderedShopkeepers.clear();
+		restoredFingerprints.clear();
+
+		logger.info("Removed " + markerCount + " BlueMap markers for all shopkeepers.");
+	}
+
+	/**
+	 * Adds the markers for the given shopkeeper.
+	 * <p>
+	 * If we already added markers for the shopkeeper before, they are updated instead, or removed
+	 * if the shopkeeper no longer has any markers.
+	 *
+	 * @param shopkeeper
+	 *            the shopkeeper snapshot
+	 */
+	void addShopkeeper(ShopkeeperSnapshot shopkeeper) {
+		assert shopkeeper != null;
+
+		var restoredFingerprint = restoredFingerprints.remove(shopkeeper.id());
+		if (restoredFingerprint != null
+				&& this.isRestoredMarkerUpToDate(shopkeeper, restoredFingerprint)) {
+			metrics.onMarkersUnchanged();
+			var rendered = renderedShopkeepers.get(shopkeeper.id());
+			exporters.forEach(exporter -> exporter.put(rendered));
+			this.debug(shopkeeper.getLogPrefix() + "Restored BlueMap markers are unchanged.");
+			return;
+		}
+
+		var worldName = shopkeeper.worldName();
+		if (worldName == null) {
+			// E.g. the case for virtual shopkeepers.
+			// Maybe the shopkeeper object type changed from previously non-virtual to now virtual:
+			this.removeShopkeeper(shopkeeper.id());
+			this.debug(shopkeeper.getLogPrefix()
+					+ "Not adding BlueMap markers for virtual shopkeeper.");
+			return;
+		}
+
+		var settings = this.settings.get();
+		var markerSettings = settings.getMarkerSettings(shopkeeper.shopTypeId());
+		if (markerSettings == null) {
+			// Skip if no marker icon is defined:
+			this.removeShopkeeper(shopkeeper.id());
+			this.debug(shopkeeper.getLogPrefix()
+					+ "Not adding BlueMap markers: No icon defined.");
+			return;
+		}
+
+		MarkerState markerState;
+		var rendered = renderedShopkeepers.get(shopkeeper.id());
+		if (rendered != null
+				&& rendered.settingsFingerprint() == settings.getMarkerFingerprint()
+				&& rendered.shopkeeper().equalsIgnoringLocation(shopkeeper)) {
+			// Only the location changed (e.g. the shopkeeper was moved or teleported): Reuse the
+			// rendered label and detail.
+			markerState = rendered.state().withPosition(
+					shopkeeper.x() + 0.5D,
+					shopkeeper.y() + 0.5D,
+					shopkeeper.z() + 0.5D
+			);
+		} else {
+			markerState = new MarkerState(
+					getMarkerLabel(shopkeeper, markerSettings),
+					getShopkeeperDetail(shopkeeper, settings),
+					markerSettings.icon(),
+					markerSettings.anchorX(),
+					markerSettings.anchorY(),
+					shopkeeper.x() + 0.5D,
+					shopkeeper.y() + 0.5D,
+					shopkeeper.z() + 0.5D,
+					MapRule.DEFAULT.minDistance(),
+					MapRule.DEFAULT.maxDistance()
+			);
+		}
+
+		if (!exporters.isEmpty()) {
+			// Exported regardless of our own maps, since the exported markers might be shown on
+			// other maps of the world:
+			var entry = new MarkerCache.Entry(
+					shopkeeper,
+					markerState,
+					settings.getMarkerFingerprint()
+			);
+			exporters.forEach(exporter -> exporter.put(entry));
+		}
+
+		var mapLayers = this.getMapLayers(worldName, shopkeeper);
+		if (mapLayers.isEmpty()) {
+			this.removeShopkeeperMarkers(shopkeeper.id());
+			return;
+		}
+
+		this.putShopkeeperMarkers(
+				shopkeeper,
+				worldName,
+				settings.getMarkerSetId(shopkeeper.shopTypeId()),
+				mapLayers,
+				markerState,
+				settings.getMarkerFingerprint()
+		);
+	}
+
+	/**
+	 * Adds or updates the markers of a shopkeeper that was imported from another server.
+	 * <p>
+	 * The imported markers are added to the maps of the world with the same name.
+	 *
+	 * @param localId
+	 *            the local id of the imported shopkeeper, negative
+	 * @param entry
+	 *            the exported markers of the shopkeeper
+	 */
+	void importShopkeeper(int localId, MarkerCache.Entry entry) {
+		assert localId < 0;
+		var shopkeeper = entry.shopkeeper().withId(localId);
+		var worldName = shopkeeper.worldName();
+		if (worldName == null) {
+			this.removeImportedShopkeeper(localId);
+			return;
+		}
+
+		var mapLayers = this.getMapLayers(worldName, shopkeeper);
+		if (mapLayers.isEmpty()) {
+			this.removeImportedShopkeeper(localId);
+			return;
+		}
+
+		this.putShopkeeperMarkers(
+				shopkeeper,
+				worldName,
+				settings.get().getMarkerSetId(shopkeeper.shopTypeId()),
+				mapLayers,
+				entry.state(),
+				entry.settingsFingerprint()
+		);
+	}
+
+	/**
+	 * Removes the markers of a shopkeeper that was imported from another server.
+	 *
+	 * @param localId
+	 *            the local id of the imported shopkeeper
+	 */
+	void removeImportedShopkeeper(int localId) {
+		assert localId < 0;
+		this.removeShopkeeperMarkers(localId);
+	}
+
+	// The given marker state uses the default distance range.
+	private void putShopkeeperMarkers(
+			ShopkeeperSnapshot shopkeeper,
+			String worldName,
+			String markerSetId,
+			List<MapLayer> mapLayers,
+			MarkerState markerState,
+			long settingsFingerprint
+	) {
+		renderedShopkeepers.put(
+				shopkeeper.id(),
+				new MarkerCache.Entry(shopkeeper, markerState, settingsFingerprint)
+		);
+
+		if (clusterSettings != null) {
+			this.addClusteredShopkeeper(
+					shopkeeper.id(),
+					worldName,
+					markerSetId,
+					mapLayers,
+					markerState
+			);
+			return;
+		}
+
+		var previous = shopkeeperMarkers.getOrDefault(shopkeeper.id(), List.of());
+		var markerId = getMarkerId(shopkeeper.id());
+		var changed = false;
+
+		// Remove the markers from the maps whose rules no longer match the shopkeeper:
+		for (var previousMarkers : previous) {
+			if (findMapLayer(mapLayers, previousMarkers.mapRule()) == null) {
+				this.removeMarker(markerId, previousMarkers);
+				changed = true;
+			}
+		}
+
+		var addedMarkers = new ArrayList<AddedMarkers>(mapLayers.size());
+		var mapCount = 0;
+		for (var mapLayer : mapLayers) {
+			var mapRule = mapLayer.mapRule();
+			var previousMarkers = findAddedMarkers(previous, mapRule);
+			var layerMarkers = this.putMarker(
+					markerId,
+					markerSetId,
+					previousMarkers,
+					mapLayer,
+					markerState.withDistanceRange(mapRule.minDistance(), mapRule.maxDistance())
+			);
+			changed |= (layerMarkers != previousMarkers);
+			addedMarkers.add(layerMarkers);
+			mapCount += mapLayer.maps().size();
+		}
+
+		if (!changed) {
+			metrics.onMarkersUnchanged();
+			this.debug(shopkeeper.getLogPrefix() + "BlueMap markers are unchanged.");
+			return;
+		}
+
+		if (previous.isEmpty()) {
+			metrics.onMarkersAdded();
+		} else {
+			metrics.onMarkersUpdated();
+		}
+
+		shopkeeperMarkers.put(shopkeeper.id(), List.copyOf(addedMarkers));
+		this.debug(shopkeeper.getLogPrefix() + (previous.isEmpty() ? "Added" : "Updated")
+				+ " BlueMap markers on " + mapCount + " maps.");
+	}
+
+	/**
+	 * Restores the given markers from the marker cache.
+	 * <p>
+	 * The restored markers are skipped during subsequent {@link #addShopkeeper(ShopkeeperSnapshot)
+	 * updates} if the shopkeeper and the settings are unchanged. The markers of restored
+	 * shopkeepers that have not been updated since can be removed via
+	 * {@link #removeUnreconciledShopkeepers()}.
+	 *
+	 * @param entries
+	 *            the loaded cache entries
+	 */
+	void restoreShopkeepers(List<MarkerCache.LoadedEntry> entries) {
+		// Publish the restored markers in a single step:
+		var rebuild = settings.get().isAtomicRebuild() && this.beginRebuild();
+		var restoredCount = 0;
+		for (var loadedEntry : entries) {
+			var entry = loadedEntry.entry();
+			var shopkeeper = entry.shopkeeper();
+			var worldName = shopkeeper.worldName();
+			if (worldName == null) {
+				continue;
+			}
+			if (shopkeeperMarkers.containsKey(shopkeeper.id())
+					|| clusteredShopkeepers.contains(shopkeeper.id())) {
+				// Already added in the meantime:
+				continue;
+			}
+
+			var mapLayers = this.getMapLayers(worldName, shopkeeper);
+			if (mapLayers.isEmpty()) {
+				continue;
+			}
+
+			this.putShopkeeperMarkers(
+					shopkeeper,
+					worldName,
+					settings.get().getMarkerSetId(shopkeeper.shopTypeId()),
+					mapLayers,
+					entry.state(),
+					entry.settingsFingerprint()
+			);
+			restoredFingerprints.put(shopkeeper.id(), loadedEntry.fingerprint());
+			restoredCount++;
+		}
+
+		if (rebuild) {
+			this.commitRebuild();
+		}
+
+		logger.info("Restored " + restoredCount + " BlueMap markers from the marker cache.");
+	}
+
+	// Checks if the restored markers of the given shopkeeper can be kept as they are.
+	private boolean isRestoredMarkerUpToDate(ShopkeeperSnapshot shopkeeper, long fingerprint) {
+		// Fast pre-check: Differing fingerprints mean that the shopkeeper changed.
+		if (fingerprint != shopkeeper.fingerprint()) {
+			return false;
+		}
+
+		// Only if the markers were rendered with the current settings:
+		var rendered = renderedShopkeepers.get(shopkeeper.id());
+		if (rendered == null
+				|| rendered.settingsFingerprint() != settings.get().getMarkerFingerprint()) {
+			return false;
+		}
+
+		// Equal fingerprints can collide. Compare the restored snapshot exactly:
+		return rendered.shopkeeper().equals(shopkeeper);
+	}
+
+	/**
+	 * Removes the markers that were restored from the marker cache, but whose shopkeepers have
+	 * not been updated since.
+	 * <p>
+	 * This is called once all current shopkeepers have been added, to remove the markers of
+	 * shopkeepers that no longer exist.
+	 */
+	void removeUnreconciledShopkeepers() {
+		if (restoredFingerprints.isEmpty()) {
+			return;
+		}
+
+		var shopkeeperIds = new ArrayList<>(restoredFingerprints.keySet());
+		shopkeeperIds.forEach(this::removeShopkeeper);
+		this.debug("Removed the restored BlueMap markers of " + shopkeeperIds.size()
+				+ " shopkeepers that no longer exist.");
+	}
+
+	/**
+	 * Gets the entries for the marker cache.
+	 *
+	 * @return the marker cache entries, or an empty collection if the marker cache is disabled
+	 */
+	Collection<MarkerCache.Entry> getCacheEntries() {
+		if (!markerCacheEnabled) {
+			return List.of();
+		}
+		// Excludes the shopkeepers that were imported from other servers:
+		return renderedShopkeepers.values().stream()
+				.filter(entry -> entry.shopkeeper().id() >= 0)
+				.toList();
+	}
+
+	private void addClusteredShopkeeper(
+			int shopkeeperId,
+			String worldName,
+			String markerSetId,
+			List<MapLayer> mapLayers,
+			MarkerState markerState
+	) {
+		assert clusterSettings != null;
+		// The cluster markers are updated once the changes are published.
+		// Remove the shopkeeper from the clusters of the map rules that no longer match, and of
+		// its previous marker set:
+		clusters.forEach((clusterGroup, groupClusters) -> {
+			if (!clusterGroup.markerSetId().equals(markerSetId)
+					|| findMapLayer(mapLayers, clusterGroup.mapRule()) == null) {
+				groupClusters.remove(shopkeeperId);
+			}
+		});
+
+		for (var mapLayer : mapLayers) {
+			var mapRule = mapLayer.mapRule();
+			var groupClusters = clusters.computeIfAbsent(
+					new ClusterGroup(mapRule, markerSetId),
+					key -> new MarkerClusters(clusterSettings)
+			);
+			groupClusters.put(
+					shopkeeperId,
+					worldName,
+					markerState.withDistanceRange(mapRule.minDistance(), mapRule.maxDistance())
+			);
+		}
+
+		if (clusteredShopkeepers.add(shopkeeperId)) {
+			metrics.onMarkersAdded();
+		} else {
+			metrics.onMarkersUpdated();
+		}
+	}
+
+	/**
+	 * Gets the maps of the specified world, grouped by their map rules, whose map rules match the
+	 * given shopkeeper.
+	 *
+	 * @param worldName
+	 *            the world name
+	 * @param shopkeeper
+	 *            the shopkeeper, or <code>null</code> to not filter the maps
+	 * @return the map layers, can be empty
+	 */
+	private List<MapLayer> getMapLayers(String worldName, @Nullable ShopkeeperSnapshot shopkeeper) {
+		var worldMaps = maps.getMaps(worldName);
+		if (worldMaps.isEmpty()) {
+			return List.of();
+		}
+
+		var settings = this.settings.get();
+		if (!settings.hasMapRules()) {
+			// Fast path: All maps show all shopkeepers.
+			return List.of(new MapLayer(MapRule.DEFAULT, worldMaps));
+		}
+
+		// Usually, there are only a few maps per world. A linear search is therefore sufficient.
+		var mapLayers = new ArrayList<MapLayer>();
+		for (BlueMapMap map : worldMaps) {
+			var mapRule = settings.getMapRule(map.getId());
+			if (shopkeeper != null && !mapRule.test(shopkeeper)) {
+				continue;
+			}
+
+			var mapLayer = findMapLayer(mapLayers, mapRule);
+			if (mapLayer == null) {
+				mapLayer = new MapLayer(mapRule, new ArrayList<>());
+				mapLayers.add(mapLayer);
+			}
+			mapLayer.maps().add(map);
+		}
+		return mapLayers;
+	}
+
+	private static @Nullable MapLayer findMapLayer(List<MapLayer> mapLayers, MapRule mapRule) {
+		for (var mapLayer : mapLayers) {
+			if (mapLayer.mapRule().equals(mapRule)) {
+				return mapLayer;
+			}
+		}
+		return null;
+	}
+
+	private static @Nullable AddedMarkers findAddedMarkers(
+			List<AddedMarkers> addedMarkers,
+			MapRule mapRule
+	) {
+		for (var markers : addedMarkers) {
+			if (markers.mapRule().equals(mapRule)) {
+				return markers;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the given marker to the maps of the given map layer, or updates the previously added
+	 * marker.
+	 * <p>
+	 * The marker is the same for all maps of a world with the same map rule. We therefore create
+	 * it only once and share it between the maps, instead of creating a separate copy for each
+	 * map.
+	 *
+	 * @param markerId
+	 *            the marker id
+	 * @param markerSetId
+	 *            the marker set id
+	 * @param previous
+	 *            the previously added markers for the same map rule, or <code>null</code>
+	 * @param mapLayer
+	 *            the map layer
+	 * @param markerState
+	 *            the marker state
+	 * @return the added markers, or the given previous markers if they are unchanged
+	 */
+	private AddedMarkers putMarker(
+			String markerId,
+			String markerSetId,
+			@Nullable AddedMarkers previous,
+			MapLayer mapLayer,
+			MarkerState markerState
+	) {
+		var worldMaps = mapLayer.maps();
+		assert !worldMaps.isEmpty();
+		var mapIds = new ArrayList<String>(worldMaps.size());
+		for (BlueMapMap map : worldMaps) {
+			mapIds.add(map.getId());
+		}
+
+		if (previous != null) {
+			if (previous.markerSetId().equals(markerSetId) && previous.mapIds().equals(mapIds)) {
+				// Same maps: Only update the markers if something changed.
+				if (previous.state().equals(markerState)) {
+					return previous;
+				}
+
+				// The marker is shared by all maps, so we only need to update it once:
+				var marker = previous.marker();
+				markerState.applyTo(marker, previous.state());
+				for (BlueMapMap map : worldMaps) {
+					if (this.getMapMarker(map, markerSetId, markerId) != marker) {
+						// The marker has been removed or replaced by someone else in the meantime:
+						this.putMapMarker(map, markerSetId, markerId, marker);
+					}
+				}
+				return new AddedMarkers(
+						mapLayer.mapRule(),
+						markerSetId,
+						mapIds,
+						markerState,
+						marker
+				);
+			}
+
+			// The world, the world's maps, or the marker set changed: Move the previous marker
+			// instead of creating a new one.
+			this.removeMarker(markerId, previous);
+			var marker = previous.marker();
+			markerState.applyTo(marker, previous.state());
+			for (BlueMapMap map : worldMaps) {
+				this.putMapMarker(map, markerSetId, markerId, marker);
+			}
+			return new AddedMarkers(mapLayer.mapRule(), markerSetId, mapIds, markerState, marker);
+		}
+
+		var marker = markerState.createMarker();
+		for (BlueMapMap map : worldMaps) {
+			this.putMapMarker(map, markerSetId, markerId, marker);
+		}
+		return new AddedMarkers(mapLayer.mapRule(), markerSetId, mapIds, markerState, marker);
+	}
+
+	/**
+	 * Removes the given previously added markers.
+	 *
+	 * @param markerId
+	 *            the marker id
+	 * @param addedMarkers
+	 *            the added markers
+	 * @return the number of maps that the marker was removed from
+	 */
+	private int removeMarker(String markerId, AddedMarkers addedMarkers) {
+		// We only check the maps that we previously added the marker to.
+		var markerCount = 0;
+		for (var mapId : addedMarkers.mapIds()) {
+			var map = maps.getMap(mapId);
+			if (map == null) {
+				continue;
+			}
+
+			var marker = this.removeMapMarker(map, addedMarkers.markerSetId(), markerId);
+			if (marker != null) {
+				markerCount += 1;
+			}
+		}
+		return markerCount;
+	}
+
+	/**
+	 * Publishes the pending changes to the cluster markers.
+	 * <p>
+	 * Has no effect if clustering is disabled. Called after each marker operation, so that each
+	 * changed cluster is only rendered once per operation, even if multiple of its shopkeepers
+	 * changed.
+	 */
+	void publishChanges() {
+		if (clusterSettings == null) {
+			return;
+		}
+
+		clusters.forEach((clusterGroup, groupClusters) -> {
+			for (var cluster : groupClusters.takeDirtyClusters()) {
+				this.publishCluster(clusterGroup, cluster);
+			}
+		});
+	}
+
+	private void publishCluster(ClusterGroup clusterGroup, MarkerClusters.Cluster cluster) {
+		assert clusterSettings != null;
+		var markerId = cluster.getMarkerId();
+		var previous = cluster.getPublishedMarkers();
+
+		MapLayer mapLayer = null;
+		if (!cluster.isEmpty()) {
+			mapLayer = findMapLayer(
+					this.getMapLayers(cluster.getWorldName(), null),
+					clusterGroup.mapRule()
+			);
+		}
+		if (mapLayer == null) {
+			if (previous != null) {
+				this.removeMarker(markerId, previous);
+				cluster.setPublishedMarkers(null);
+			}
+			return;
+		}
+
+		var markerState = cluster.render(clusterSettings);
+		cluster.setPublishedMarkers(this.putMarker(
+				markerId,
+				clusterGroup.markerSetId(),
+				previous,
+				mapLayer,
+				markerState
+		));
+	}
+
+	static String getMarkerId(int shopkeeperId) {
+		return "shopkeeper_" + shopkeeperId;
+	}
+
+	// Also used by the benchmarks.
+	static String getMarkerLabel(ShopkeeperSnapshot shopkeeper, MarkerSettings markerSettings) {
+		var template = markerSettings.labelTemplate();
+		return template.render(placeholder -> getPlaceholderValue(shopkeeper, placeholder));
+	}
+
+	// Also used by the benchmarks.
+	static String getShopkeeperDetail(ShopkeeperSnapshot shopkeeper, Settings settings) {
+		// Note: The detail template does not support placeholders for unescaped user input (e.g.
+		// the shopkeeper name).
+		var template = settings.getMarkerDetailTemplate();
+		return template.render(placeholder -> getPlaceholderValue(shopkeeper, placeholder));
+	}
+
+	private static String getPlaceholderValue(
+			ShopkeeperSnapshot shopkeeper,
+			Placeholder placeholder
+	) {
+		return switch (placeholder) {
+			case SHOP_ID -> Integer.toString(shopkeeper.id());
+			case SHOP_UUID -> shopkeeper.uniqueId().toString();
+			case SHOP_NAME -> shopkeeper.name();
+			case SHOP_TYPE -> shopkeeper.shopTypeName();
+			case SHOP_OBJECT_TYPE -> shopkeeper.shopObjectTypeName();
+			case SHOP_OWNER_NAME -> shopkeeper.ownerName();
+			case SHOP_OFFERS_COUNT -> Integer.toString(Math.max(0, shopkeeper.offersCount()));
+			// Only supported by the cluster label:
+			case SHOP_COUNT -> "1";
+		};
+	}
+
+	/**
+	 * Removes the markers of the specified shopkeeper.
+	 * <p>
+	 * The exported markers of the shopkeeper are removed as well.
+	 *
+	 * @param shopkeeperId
+	 *            the shopkeeper id
+	 */
+	void removeShopkeeper(int shopkeeperId) {
+		exporters.forEach(exporter -> exporter.remove(shopkeeperId));
+		this.removeShopkeeperMarkers(shopkeeperId);
+	}
+
+	// Does not remove the exported markers.
+	private void removeShopkeeperMarkers(int shopkeeperId) {
+		// Not skipping virtual shopkeepers here: Maybe the shopkeeper object type changed in the
+		// meantime from previously non-virtual to now virtual.
+
+		renderedShopkeepers.remove(shopkeeperId);
+		restoredFingerprints.remove(shopkeeperId);
+
+		if (clusterSettings != null) {
+			if (clusteredShopkeepers.remove(shopkeeperId)) {
+				clusters.values().forEach(groupClusters -> groupClusters.remove(shopkeeperId));
+				metrics.onMarkersRemoved();
+			}
+			return;
+		}
+
+		// We cannot use the shopkeeper's current world since it might have changed since the
+		// markers were added. Instead, we only check the maps that we previously added markers to.
+		var addedMarkers = shopkeeperMarkers.remove(shopkeeperId);
+		if (addedMarkers == null) {
+			return; // No markers were added
+		}
+
+		var markerId = getMarkerId(shopkeeperId);
+		var markerCount = 0;
+		for (var markers : addedMarkers) {
+			markerCount += this.removeMarker(markerId, markers);
+		}
+		metrics.onMarkersRemoved();
+		this.debug("Shopkeeper " + shopkeeperId + ": Removed BlueMap markers from "
+				+ markerCount + " maps.");
+	}
+}
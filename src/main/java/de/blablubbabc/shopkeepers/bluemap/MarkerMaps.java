@@ -0,0 +1,69 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import de.bluecolored.bluemap.api.BlueMapAPI;
+import de.bluecolored.bluemap.api.BlueMapMap;
+import de.bluecolored.bluemap.api.BlueMapWorld;
+
+/**
+ * Provides access to the BlueMap maps that we add our markers to.
+ * <p>
+ * This decouples the marker handling from the {@link BlueMapAPI}, e.g. for benchmarks.
+ */
+interface MarkerMaps {
+
+	/**
+	 * Gets the {@link MarkerMaps} for the given BlueMap API.
+	 *
+	 * @param blueMapApi
+	 *            the BlueMap API
+	 * @return the marker maps
+	 */
+	static MarkerMaps of(BlueMapAPI blueMapApi) {
+		return new MarkerMaps() {
+			@Override
+			public Collection<BlueMapMap> getMaps(String worldName) {
+				return blueMapApi.getWorld(worldName).map(BlueMapWorld::getMaps).orElse(List.of());
+			}
+
+			@Override
+			public @Nullable BlueMapMap getMap(String mapId) {
+				return blueMapApi.getMap(mapId).orElse(null);
+			}
+
+			@Override
+			public Collection<BlueMapMap> getAllMaps() {
+				return blueMapApi.getMaps();
+			}
+		};
+	}
+
+	/**
+	 * Gets the maps of the specified world.
+	 *
+	 * @param worldName
+	 *            the world name
+	 * @return the maps, or an empty collection if BlueMap does not know the world
+	 */
+	Collection<BlueMapMap> getMaps(String worldName);
+
+	/**
+	 * Gets the specified map.
+	 *
+	 * @param mapId
+	 *            the map id
+	 * @return the map, or <code>null</code> if not found
+	 */
+	@Nullable BlueMapMap getMap(String mapId);
+
+	/**
+	 * Gets all maps.
+	 *
+	 * @return the maps
+	 */
+	Collection<BlueMapMap> getAllMaps();
+}
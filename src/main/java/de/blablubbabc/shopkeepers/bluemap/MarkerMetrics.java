@@ -0,0 +1,240 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lightweight metrics of the marker handling.
+ * <p>
+ * Recording is thread-safe and cheap enough to be used in the hot path: Latencies are recorded
+ * into fixed histograms with power-of-two buckets, and counters use {@link LongAdder}.
+ */
+public final class MarkerMetrics {
+
+	/**
+	 * The operations that are run on the marker thread.
+	 */
+	public enum Operation {
+		POPULATION("population"),
+		UPDATE("update"),
+		RESTORE("restore"),
+		OTHER("other");
+
+		private final String displayName;
+
+		private Operation(String displayName) {
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+	}
+
+	/**
+	 * Records latencies into a histogram with power-of-two microsecond buckets.
+	 */
+	static final class LatencyTimer {
+
+		// Bucket i contains latencies < 2^i microseconds. The last bucket contains all larger
+		// latencies (more than 35 minutes).
+		private static final int BUCKETS = 32;
+
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+
+			var micros = nanos / 1000L;
+			var bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets.incrementAndGet(bucket);
+		}
+
+		long getCount() {
+			return count.sum();
+		}
+
+		double getAverageMillis() {
+			var count = this.getCount();
+			if (count == 0) {
+				return 0.0D;
+			}
+			return toMillis(totalNanos.sum() / count);
+		}
+
+		double getMaxMillis() {
+			return toMillis(maxNanos.get());
+		}
+
+		/**
+		 * Estimates the given percentile.
+		 *
+		 * @param percentile
+		 *            the percentile, between <code>0</code> and <code>1</code>
+		 * @return the upper bound of the bucket that contains the percentile, in milliseconds
+		 */
+		double getPercentileMillis(double percentile) {
+			var count = this.getCount();
+			if (count == 0) {
+				return 0.0D;
+			}
+
+			var threshold = (long) Math.ceil(count * percentile);
+			var cumulative = 0L;
+			for (int i = 0; i < BUCKETS; i++) {
+				cumulative += buckets.get(i);
+				if (cumulative >= threshold) {
+					// Bucket i contains latencies < 2^i microseconds:
+					return Math.min((1L << i) / 1000.0D, this.getMaxMillis());
+				}
+			}
+			return this.getMaxMillis();
+		}
+
+		private static double toMillis(long nanos) {
+			return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1L);
+		}
+
+		String format() {
+			return String.format(
+					Locale.ROOT,
+					"n=%d, avg=%.3f ms, p50=%.3f ms, p99=%.3f ms, max=%.3f ms",
+					this.getCount(),
+					this.getAverageMillis(),
+					this.getPercentileMillis(0.5D),
+					this.getPercentileMillis(0.99D),
+					this.getMaxMillis()
+			);
+		}
+	}
+
+	// Main thread:
+	private final LatencyTimer populationTickTimer = new LatencyTimer();
+	private final LatencyTimer updateFlushTimer = new LatencyTimer();
+
+	// Marker thread:
+	private final Map<Operation, LatencyTimer> operationTimers = new EnumMap<>(Operation.class);
+	// The time between the submission and the start of marker operations:
+	private final LatencyTimer operationWaitTimer = new LatencyTimer();
+	private final AtomicInteger pendingOperations = new AtomicInteger();
+
+	private final LongAdder markersAdded = new LongAdder();
+	private final LongAdder markersUpdated = new LongAdder();
+	private final LongAdder markersUnchanged = new LongAdder();
+	private final LongAdder markersRemoved = new LongAdder();
+
+	private volatile long lastPopulationCount = -1L;
+	private volatile long lastPopulationNanos = 0L;
+
+	public MarkerMetrics() {
+		for (var operation : Operation.values()) {
+			operationTimers.put(operation, new LatencyTimer());
+		}
+	}
+
+	void recordPopulationTick(long nanos) {
+		populationTickTimer.record(nanos);
+	}
+
+	void recordUpdateFlush(long nanos) {
+		updateFlushTimer.record(nanos);
+	}
+
+	void onOperationSubmitted() {
+		pendingOperations.incrementAndGet();
+	}
+
+	void recordOperation(Operation operation, long waitNanos, long runNanos) {
+		pendingOperations.decrementAndGet();
+		operationWaitTimer.record(waitNanos);
+		operationTimers.get(operation).record(runNanos);
+	}
+
+	void onOperationSkipped() {
+		pendingOperations.decrementAndGet();
+	}
+
+	void onMarkersAdded() {
+		markersAdded.increment();
+	}
+
+	void onMarkersUpdated() {
+		markersUpdated.increment();
+	}
+
+	void onMarkersUnchanged() {
+		markersUnchanged.increment();
+	}
+
+	void onMarkersRemoved() {
+		markersRemoved.increment();
+	}
+
+	void recordPopulation(int shopkeeperCount, long nanos) {
+		lastPopulationCount = shopkeeperCount;
+		lastPopulationNanos = nanos;
+	}
+
+	/**
+	 * Formats the metrics.
+	 *
+	 * @param pendingShopkeeperUpdates
+	 *            the number of shopkeeper updates that are waiting to be applied
+	 * @param markersPerMap
+	 *            the number of markers per map id
+	 * @return the formatted lines
+	 */
+	List<String> format(int pendingShopkeeperUpdates, Map<String, Integer> markersPerMap) {
+		var lines = new ArrayList<String>();
+		lines.add("Main thread:");
+		lines.add("  Population ticks: " + populationTickTimer.format());
+		lines.add("  Update flushes: " + updateFlushTimer.format());
+
+		lines.add("Marker thread:");
+		for (var operation : Operation.values()) {
+			var timer = operationTimers.get(operation);
+			if (timer.getCount() == 0) {
+				continue;
+			}
+			lines.add("  " + operation.getDisplayName() + ": " + timer.format());
+		}
+		lines.add("  Wait time: " + operationWaitTimer.format());
+
+		lines.add("Queues: " + pendingShopkeeperUpdates + " pending shopkeeper updates, "
+				+ pendingOperations.get() + " pending marker operations");
+		lines.add("Markers: " + markersAdded.sum() + " added, " + markersUpdated.sum()
+				+ " updated, " + markersUnchanged.sum() + " unchanged, " + markersRemoved.sum()
+				+ " removed");
+
+		var lastPopulationCount = this.lastPopulationCount;
+		if (lastPopulationCount >= 0) {
+			var millis = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(lastPopulationNanos));
+			lines.add("Last population: " + lastPopulationCount + " shopkeepers in " + millis
+					+ " ms (" + (lastPopulationCount * 1000L / millis) + " markers/s)");
+		}
+
+		if (markersPerMap.isEmpty()) {
+			lines.add("Markers per map: -");
+		} else {
+			lines.add("Markers per map:");
+			markersPerMap.forEach((mapId, count) -> lines.add("  " + mapId + ": " + count));
+		}
+		return lines;
+	}
+}
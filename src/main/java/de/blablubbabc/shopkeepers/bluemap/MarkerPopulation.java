@@ -0,0 +1,251 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.bukkit.scheduler.BukkitTask;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.nisovin.shopkeepers.api.shopkeeper.Shopkeeper;
+
+import de.blablubbabc.shopkeepers.bluemap.MarkerMetrics.Operation;
+import de.blablubbabc.shopkeepers.bluemap.util.SchedulerUtils;
+
+/**
+ * Adds the BlueMap markers for a snapshot of shopkeepers in batches that are spread across
+ * multiple server ticks.
+ * <p>
+ * Each tick, we capture the data of the next shopkeepers on the main thread until the configured
+ * time budget is used up, and then create their markers on the marker thread. The population is
+ * cancelled when the BlueMap API that it was started for is disabled in the meantime.
+ * <p>
+ * If a {@link PopulationOrder} is given, we first capture the locations of the shopkeepers in
+ * time-budgeted batches, then sort the shopkeepers on the marker thread, and then capture the
+ * data of the shopkeepers in the sorted order.
+ */
+class MarkerPopulation {
+
+	private final ShopkeepersBlueMapPlugin plugin;
+	private final ShopkeepersBlueMap shopkeepersBlueMap;
+	// The BlueMap API generation that the population was started for:
+	private final long blueMapGeneration;
+	// The number of shopkeepers:
+	private final int total;
+	// Run on the marker thread after the markers of all shopkeepers have been added:
+	private final @Nullable Consumer<MarkerManager> completionOperation;
+	// 0 to capture all shopkeepers at once:
+	private final long timeBudgetNanos;
+	private final long progressLogIntervalNanos;
+
+	// Snapshot of the shopkeepers at the time the population was started. Replaced by the sorted
+	// shopkeepers once they have been ordered. Only accessed on the main thread.
+	private List<? extends Shopkeeper> shopkeepers;
+	// Null if the shopkeepers are not ordered, or once they have been ordered. Only accessed on
+	// the main thread.
+	private @Nullable PopulationOrder order;
+	// Set on the marker thread once the shopkeepers have been sorted:
+	private volatile @Nullable List<? extends Shopkeeper> sortedShopkeepers = null;
+	// Only accessed on the main thread:
+	private boolean sorting = false;
+
+	private volatile BukkitTask task = null;
+	// Set on the main thread or when the BlueMap API is disabled, and checked by the marker
+	// operations on the marker thread:
+	private volatile boolean cancelled = false;
+	// Set once the last batch has been captured:
+	private volatile boolean captured = false;
+
+	// Only accessed on the main thread:
+	private int nextIndex = 0;
+	private int ticks = 0;
+	private long startNanos;
+	private long lastProgressLogNanos;
+
+	MarkerPopulation(
+			ShopkeepersBlueMapPlugin plugin,
+			ShopkeepersBlueMap shopkeepersBlueMap,
+			long blueMapGeneration,
+			List<? extends Shopkeeper> shopkeepers,
+			@Nullable PopulationOrder order,
+			@Nullable Consumer<MarkerManager> completionOperation
+	) {
+		this.plugin = plugin;
+		this.shopkeepersBlueMap = shopkeepersBlueMap;
+		this.blueMapGeneration = blueMapGeneration;
+		this.total = shopkeepers.size();
+		this.shopkeepers = shopkeepers;
+		this.order = order;
+		this.completionOperation = completionOperation;
+
+		var settings = plugin.getSettings();
+		var timeBudgetMillis = settings.getPopulationTimeBudgetMillis();
+		this.timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeBudgetMillis));
+		this.progressLogIntervalNanos = TimeUnit.SECONDS.toNanos(
+				Math.max(0, settings.getPopulationProgressLogIntervalSeconds())
+		);
+	}
+
+	// Called on the main thread.
+	void start() {
+		assert task == null;
+		startNanos = System.nanoTime();
+		lastProgressLogNanos = startNanos;
+
+		if (timeBudgetNanos > 0) {
+			plugin.getLogger().info("Adding BlueMap markers for " + total + " shopkeepers ...");
+		}
+
+		// Process the first batch right away:
+		this.tick();
+		if (captured || cancelled) {
+			return;
+		}
+
+		task = SchedulerUtils.runTaskTimerOrOmit(plugin, this::tick, 1L, 1L);
+		if (task == null) {
+			// The plugin is being disabled:
+			cancelled = true;
+		}
+	}
+
+	/**
+	 * Checks if the data of all shopkeepers has been captured and the creation of their markers
+	 * has been submitted to the marker thread.
+	 * 
+	 * @return <code>true</code> if all shopkeepers have been captured
+	 */
+	boolean isCaptured() {
+		return captured;
+	}
+
+	// Potentially called off the main thread.
+	void cancel() {
+		// Once all shopkeepers have been captured, the remaining marker operations are still
+		// applied, unless the BlueMap API is disabled in the meantime:
+		if (cancelled || captured) {
+			return;
+		}
+		cancelled = true;
+
+		// Thread-safe:
+		var task = this.task;
+		if (task != null) {
+			task.cancel();
+		}
+
+		plugin.getLogger().info("Cancelled adding BlueMap markers for shopkeepers after "
+				+ nextIndex + "/" + total + " shopkeepers.");
+	}
+
+	// Called on the main thread.
+	private void tick() {
+		if (cancelled || captured) {
+			return;
+		}
+
+		if (!shopkeepersBlueMap.isCurrentBlueMapGeneration(blueMapGeneration)) {
+			// The BlueMap API we were started for is no longer enabled:
+			this.cancel();
+			return;
+		}
+
+		ticks++;
+
+		var tickStartNanos = System.nanoTime();
+		var deadline = tickStartNanos + timeBudgetNanos;
+		var metrics = shopkeepersBlueMap.getMetrics();
+		if (order != null && !this.tickOrder(order, deadline)) {
+			metrics.recordPopulationTick(System.nanoTime() - tickStartNanos);
+			return;
+		}
+
+		var batch = new ArrayList<ShopkeeperSnapshot>();
+		var settings = plugin.getSettings();
+		var strings = shopkeepersBlueMap.getShopkeeperStrings();
+		while (nextIndex < total) {
+			var shopkeeper = shopkeepers.get(nextIndex++);
+			// Skip shopkeepers that were removed since we took the snapshot:
+			if (shopkeeper.isValid()) {
+				batch.add(ShopkeeperSnapshot.capture(shopkeeper, settings, strings));
+			}
+
+			if (timeBudgetNanos > 0 && System.nanoTime() - deadline >= 0) {
+				break;
+			}
+		}
+
+		metrics.recordPopulationTick(System.nanoTime() - tickStartNanos);
+
+		var completed = (nextIndex >= total);
+		captured = completed;
+		var processed = nextIndex;
+		var ticks = this.ticks;
+		// Skipped if the BlueMap API is disabled in the meantime:
+		shopkeepersBlueMap.submitMarkerOperation(Operation.POPULATION, markerManager -> {
+			if (cancelled) {
+				return;
+			}
+
+			batch.forEach(markerManager::addShopkeeper);
+
+			if (completed) {
+				if (completionOperation != null) {
+					completionOperation.accept(markerManager);
+				}
+
+				var durationNanos = System.nanoTime() - startNanos;
+				metrics.recordPopulation(total, durationNanos);
+				var durationMillis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+				plugin.getLogger().info("Added BlueMap markers for " + total + " shopkeepers ("
+						+ durationMillis + " ms, " + ticks + " ticks).");
+			}
+		});
+
+		if (completed) {
+			if (task != null) {
+				task.cancel();
+			}
+			return;
+		}
+
+		var now = System.nanoTime();
+		if (progressLogIntervalNanos > 0 && now - lastProgressLogNanos >= progressLogIntervalNanos) {
+			lastProgressLogNanos = now;
+			plugin.getLogger().info("Adding BlueMap markers for shopkeepers: " + processed + "/"
+					+ total);
+		}
+	}
+
+	// Called on the main thread. Returns true once the shopkeepers have been ordered.
+	private boolean tickOrder(PopulationOrder order, long deadline) {
+		if (sorting) {
+			var sortedShopkeepers = this.sortedShopkeepers;
+			if (sortedShopkeepers == null) {
+				// Still sorting on the marker thread:
+				return false;
+			}
+
+			shopkeepers = sortedShopkeepers;
+			this.order = null;
+			return true;
+		}
+
+		if (!order.capture(deadline)) {
+			return false;
+		}
+
+		// Sort the shopkeepers off the main thread. Skipped if the BlueMap API is disabled in the
+		// meantime, in which case the population is cancelled during the next tick.
+		sorting = true;
+		shopkeepersBlueMap.submitMarkerOperation(Operation.POPULATION, markerManager -> {
+			if (cancelled) {
+				return;
+			}
+
+			sortedShopkeepers = order.sort();
+		});
+		return false;
+	}
+}
@@ -0,0 +1,130 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.Objects;
+
+import de.bluecolored.bluemap.api.markers.POIMarker;
+
+/**
+ * The rendered state of a shopkeeper marker.
+ * <p>
+ * This is used to detect whether a shopkeeper's marker actually changed, so that we can skip
+ * unchanged markers and only update the changed fields of existing markers in-place.
+ */
+record MarkerState(
+		String label,
+		String detail,
+		String icon,
+		int anchorX,
+		int anchorY,
+		double x,
+		double y,
+		double z,
+		double minDistance,
+		double maxDistance
+) {
+
+	/**
+	 * Gets a copy of this state with the given distance range.
+	 *
+	 * @param minDistance
+	 *            the minimum camera distance at which BlueMap shows the marker
+	 * @param maxDistance
+	 *            the maximum camera distance at which BlueMap shows the marker
+	 * @return the marker state, or this state if the distance range is unchanged
+	 */
+	MarkerState withDistanceRange(double minDistance, double maxDistance) {
+		if (this.minDistance == minDistance && this.maxDistance == maxDistance) {
+			return this;
+		}
+		return new MarkerState(
+				label,
+				detail,
+				icon,
+				anchorX,
+				anchorY,
+				x,
+				y,
+				z,
+				minDistance,
+				maxDistance
+		);
+	}
+
+	/**
+	 * Gets a copy of this state with the given position.
+	 *
+	 * @param x
+	 *            the x coordinate
+	 * @param y
+	 *            the y coordinate
+	 * @param z
+	 *            the z coordinate
+	 * @return the marker state, or this state if the position is unchanged
+	 */
+	MarkerState withPosition(double x, double y, double z) {
+		if (this.x == x && this.y == y && this.z == z) {
+			return this;
+		}
+		return new MarkerState(
+				label,
+				detail,
+				icon,
+				anchorX,
+				anchorY,
+				x,
+				y,
+				z,
+				minDistance,
+				maxDistance
+		);
+	}
+
+	/**
+	 * Creates a new marker with this state.
+	 *
+	 * @return the new marker
+	 */
+	POIMarker createMarker() {
+		return POIMarker.builder()
+				.label(label)
+				.detail(detail)
+				.icon(icon, anchorX, anchorY)
+				.position(x, y, z)
+				.minDistance(minDistance)
+				.maxDistance(maxDistance)
+				.build();
+	}
+
+	/**
+	 * Updates the given marker, which is expected to currently match the given previous state, to
+	 * match this state.
+	 * <p>
+	 * Only the fields that differ between the previous and this state are updated.
+	 *
+	 * @param marker
+	 *            the marker to update
+	 * @param previous
+	 *            the previous state of the marker
+	 */
+	void applyTo(POIMarker marker, MarkerState previous) {
+		if (!label.equals(previous.label)) {
+			marker.setLabel(label);
+		}
+		if (!Objects.equals(detail, previous.detail)) {
+			marker.setDetail(detail);
+		}
+		if (!icon.equals(previous.icon) || anchorX != previous.anchorX
+				|| anchorY != previous.anchorY) {
+			marker.setIcon(icon, anchorX, anchorY);
+		}
+		if (x != previous.x || y != previous.y || z != previous.z) {
+			marker.setPosition(x, y, z);
+		}
+		if (minDistance != previous.minDistance) {
+			marker.setMinDistance(minDistance);
+		}
+		if (maxDistance != previous.maxDistance) {
+			marker.setMaxDistance(maxDistance);
+		}
+	}
+}
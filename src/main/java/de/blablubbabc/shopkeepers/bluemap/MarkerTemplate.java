@@ -0,0 +1,188 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * A marker text template that has been parsed into literal segments and placeholder slots.
+ * <p>
+ * Templates are compiled once when the config is loaded and can then be rendered in a single
+ * pass, without any intermediate strings or regular expressions.
+ */
+public final class MarkerTemplate {
+
+	/**
+	 * The supported placeholders.
+	 */
+	public enum Placeholder {
+		SHOP_ID("shop_id"),
+		SHOP_UUID("shop_uuid"),
+		SHOP_NAME("shop_name"),
+		SHOP_TYPE("shop_type"),
+		SHOP_OBJECT_TYPE("shop_object_type"),
+		SHOP_OWNER_NAME("shop_owner_name"),
+		SHOP_OFFERS_COUNT("shop_offers_count"),
+		SHOP_COUNT("shop_count");
+
+		private final String key;
+
+		private Placeholder(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * Gets the placeholder key, without the enclosing curly braces.
+		 *
+		 * @return the placeholder key
+		 */
+		public String getKey() {
+			return key;
+		}
+	}
+
+	/**
+	 * Compiles the given template text.
+	 * <p>
+	 * Placeholders have the format <code>{key}</code>. Placeholders that are not contained in the
+	 * given set of supported placeholders are kept as literal text.
+	 *
+	 * @param template
+	 *            the template text, not <code>null</code>
+	 * @param supportedPlaceholders
+	 *            the supported placeholders
+	 * @return the compiled template
+	 */
+	public static MarkerTemplate compile(String template, Set<Placeholder> supportedPlaceholders) {
+		var literals = new ArrayList<String>();
+		var placeholders = new ArrayList<Placeholder>();
+
+		var literal = new StringBuilder();
+		var index = 0;
+		var length = template.length();
+		while (index < length) {
+			var c = template.charAt(index);
+			if (c == '{') {
+				var end = template.indexOf('}', index + 1);
+				if (end != -1) {
+					var placeholder = findPlaceholder(
+							template.substring(index + 1, end),
+							supportedPlaceholders
+					);
+					if (placeholder != null) {
+						literals.add(literal.toString());
+						literal.setLength(0);
+						placeholders.add(placeholder);
+						index = end + 1;
+						continue;
+					}
+				}
+			}
+
+			literal.append(c);
+			index++;
+		}
+		literals.add(literal.toString());
+
+		return new MarkerTemplate(
+				literals.toArray(String[]::new),
+				placeholders.toArray(Placeholder[]::new)
+		);
+	}
+
+	private static Placeholder findPlaceholder(String key, Set<Placeholder> supportedPlaceholders) {
+		for (var placeholder : supportedPlaceholders) {
+			if (placeholder.getKey().equals(key)) {
+				return placeholder;
+			}
+		}
+		return null;
+	}
+
+	// One more literal than placeholders: literals[i] precedes placeholders[i].
+	private final String[] literals;
+	private final Placeholder[] placeholders;
+	private final Set<Placeholder> usedPlaceholders = EnumSet.noneOf(Placeholder.class);
+	private final int literalsLength;
+
+	private MarkerTemplate(String[] literals, Placeholder[] placeholders) {
+		assert literals.length == placeholders.length + 1;
+		this.literals = literals;
+		this.placeholders = placeholders;
+
+		var literalsLength = 0;
+		for (var literal : literals) {
+			literalsLength += literal.length();
+		}
+		this.literalsLength = literalsLength;
+
+		for (var placeholder : placeholders) {
+			usedPlaceholders.add(placeholder);
+		}
+	}
+
+	/**
+	 * Checks if this template contains the given placeholder.
+	 *
+	 * @param placeholder
+	 *            the placeholder
+	 * @return <code>true</code> if the placeholder is used by this template
+	 */
+	public boolean uses(Placeholder placeholder) {
+		return usedPlaceholders.contains(placeholder);
+	}
+
+	/**
+	 * Renders this template.
+	 * <p>
+	 * The given resolver is only invoked for the placeholders that are actually contained in this
+	 * template.
+	 *
+	 * @param resolver
+	 *            resolves the placeholder values, not <code>null</code>
+	 * @return the rendered text
+	 */
+	public String render(Function<Placeholder, String> resolver) {
+		if (placeholders.length == 0) {
+			return literals[0];
+		}
+
+		var builder = new StringBuilder(literalsLength + 16 * placeholders.length);
+		for (int i = 0; i < placeholders.length; i++) {
+			builder.append(literals[i]);
+			builder.append(resolver.apply(placeholders[i]));
+		}
+		builder.append(literals[placeholders.length]);
+		return builder.toString();
+	}
+
+	/**
+	 * Adds this template to the given fingerprint.
+	 *
+	 * @param fingerprint
+	 *            the fingerprint
+	 */
+	void addTo(Fingerprint fingerprint) {
+		fingerprint.add(placeholders.length);
+		for (int i = 0; i < placeholders.length; i++) {
+			fingerprint.add(literals[i]);
+			fingerprint.add(placeholders[i].getKey());
+		}
+		fingerprint.add(literals[placeholders.length]);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(literals) + Arrays.hashCode(placeholders);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (!(obj instanceof MarkerTemplate other)) return false;
+		return Arrays.equals(literals, other.literals)
+				&& Arrays.equals(placeholders, other.placeholders);
+	}
+}
@@ -0,0 +1,147 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.scheduler.BukkitTask;
+
+import com.nisovin.shopkeepers.api.shopkeeper.Shopkeeper;
+
+import de.blablubbabc.shopkeepers.bluemap.util.SchedulerUtils;
+
+/**
+ * Collects the marker updates for shopkeepers and applies them in periodic batches.
+ * <p>
+ * Multiple updates for the same shopkeeper within one interval are coalesced into their net
+ * effect: For example, a burst of edits results in a single marker update, and a shopkeeper that
+ * is added, edited and then removed again results in a single removal.
+ * <p>
+ * Only accessed on the main thread.
+ */
+class MarkerUpdateQueue {
+
+	/**
+	 * A pending marker update.
+	 */
+	static final class PendingUpdate {
+
+		private Shopkeeper shopkeeper;
+		private boolean remove;
+
+		private PendingUpdate(Shopkeeper shopkeeper, boolean remove) {
+			this.shopkeeper = shopkeeper;
+			this.remove = remove;
+		}
+
+		Shopkeeper getShopkeeper() {
+			return shopkeeper;
+		}
+
+		// true to remove the shopkeeper's markers, false to add or update them:
+		boolean isRemove() {
+			return remove;
+		}
+	}
+
+	private final ShopkeepersBlueMapPlugin plugin;
+	private final ShopkeepersBlueMap shopkeepersBlueMap;
+
+	// Shopkeeper id -> pending update. Preserves the order in which the shopkeepers were first
+	// updated.
+	private final Map<Integer, PendingUpdate> pendingUpdates = new LinkedHashMap<>();
+	private BukkitTask flushTask = null;
+
+	MarkerUpdateQueue(ShopkeepersBlueMapPlugin plugin, ShopkeepersBlueMap shopkeepersBlueMap) {
+		this.plugin = plugin;
+		this.shopkeepersBlueMap = shopkeepersBlueMap;
+	}
+
+	/**
+	 * Queues an update of the markers of the given shopkeeper, e.g. because the shopkeeper was
+	 * added or edited.
+	 *
+	 * @param shopkeeper
+	 *            the shopkeeper
+	 */
+	void update(Shopkeeper shopkeeper) {
+		this.enqueue(shopkeeper, false);
+	}
+
+	/**
+	 * Queues the removal of the markers of the given shopkeeper.
+	 *
+	 * @param shopkeeper
+	 *            the shopkeeper
+	 */
+	void remove(Shopkeeper shopkeeper) {
+		this.enqueue(shopkeeper, true);
+	}
+
+	private void enqueue(Shopkeeper shopkeeper, boolean remove) {
+		assert shopkeeper != null;
+
+		var pendingUpdate = pendingUpdates.get(shopkeeper.getId());
+		if (pendingUpdate != null) {
+			// Coalesce: Only the latest update matters.
+			pendingUpdate.shopkeeper = shopkeeper;
+			pendingUpdate.remove = remove;
+		} else {
+			pendingUpdates.put(shopkeeper.getId(), new PendingUpdate(shopkeeper, remove));
+		}
+
+		var interval = plugin.getSettings().getMarkerUpdateIntervalTicks();
+		if (interval <= 0) {
+			this.flush();
+			return;
+		}
+
+		if (flushTask == null) {
+			flushTask = SchedulerUtils.runTaskLaterOrOmit(plugin, this::flush, interval);
+			if (flushTask == null) {
+				// The plugin is being disabled:
+				pendingUpdates.clear();
+			}
+		}
+	}
+
+	/**
+	 * Applies all pending updates now.
+	 */
+	void flush() {
+		if (flushTask != null) {
+			flushTask.cancel();
+			flushTask = null;
+		}
+
+		if (pendingUpdates.isEmpty()) {
+			return;
+		}
+
+		List<PendingUpdate> updates = new ArrayList<>(pendingUpdates.values());
+		pendingUpdates.clear();
+		shopkeepersBlueMap.applyMarkerUpdates(updates);
+	}
+
+	/**
+	 * Gets the number of pending updates.
+	 *
+	 * @return the number of pending updates
+	 */
+	int size() {
+		return pendingUpdates.size();
+	}
+
+	/**
+	 * Discards all pending updates.
+	 */
+	void clear() {
+		if (flushTask != null) {
+			flushTask.cancel();
+			flushTask = null;
+		}
+
+		pendingUpdates.clear();
+	}
+}
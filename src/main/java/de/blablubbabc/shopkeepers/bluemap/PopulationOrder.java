@@ -0,0 +1,198 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.nisovin.shopkeepers.api.shopkeeper.Shopkeeper;
+
+import de.blablubbabc.shopkeepers.bluemap.Settings.PopulationPriority;
+
+/**
+ * Orders the shopkeepers for the marker population so that the shopkeepers near the locations
+ * that players are likely to look at on the map are added first.
+ * <p>
+ * The shopkeepers in loaded chunks are added first, since these are the areas around the online
+ * players and the spawn chunks. Within each of these two groups, the shopkeepers are ordered by
+ * their distance to the nearest hot spot in their world: The online players, the world spawns,
+ * and the configured hot spots. Shopkeepers in worlds without any hot spot, and virtual
+ * shopkeepers, are added last. Otherwise, the order of the shopkeeper registry is preserved.
+ * <p>
+ * The hot spots are collected when the order is created. The locations of the shopkeepers are
+ * then {@link #capture(long) captured} on the main thread in time-budgeted batches. Once all
+ * locations have been captured, the shopkeepers can be {@link #sort() sorted} on any thread.
+ */
+final class PopulationOrder {
+
+	private static final int NO_HOT_SPOT_DISTANCE = Integer.MAX_VALUE;
+
+	private final List<? extends Shopkeeper> shopkeepers;
+	// World name -> flat array of hot spot x and z coordinates
+	private final Map<String, int[]> hotSpots;
+
+	// The captured locations, by shopkeeper index. The world name is null for virtual shopkeepers.
+	private final @Nullable String[] worldNames;
+	private final int[] xs;
+	private final int[] zs;
+	private final boolean[] unloaded;
+
+	// Only accessed on the main thread:
+	private final Map<String, @Nullable World> worlds = new HashMap<>();
+	private int nextIndex = 0;
+
+	/**
+	 * Creates a new population order for the given shopkeepers.
+	 * <p>
+	 * Has to be called on the main thread.
+	 *
+	 * @param shopkeepers
+	 *            the shopkeepers
+	 * @param priority
+	 *            the population priority settings
+	 */
+	PopulationOrder(List<? extends Shopkeeper> shopkeepers, PopulationPriority priority) {
+		this.shopkeepers = shopkeepers;
+		this.hotSpots = collectHotSpots(priority);
+
+		var total = shopkeepers.size();
+		this.worldNames = new @Nullable String[total];
+		this.xs = new int[total];
+		this.zs = new int[total];
+		this.unloaded = new boolean[total];
+	}
+
+	/**
+	 * Captures the locations of the next shopkeepers until the given deadline is reached.
+	 * <p>
+	 * Has to be called on the main thread.
+	 *
+	 * @param deadlineNanos
+	 *            the {@link System#nanoTime()} at which to stop
+	 * @return <code>true</code> if the locations of all shopkeepers have been captured
+	 */
+	boolean capture(long deadlineNanos) {
+		var total = shopkeepers.size();
+		while (nextIndex < total) {
+			var index = nextIndex++;
+			var shopkeeper = shopkeepers.get(index);
+			var worldName = shopkeeper.getWorldName();
+			var x = shopkeeper.getX();
+			var z = shopkeeper.getZ();
+			worldNames[index] = worldName;
+			xs[index] = x;
+			zs[index] = z;
+			unloaded[index] = true;
+			if (worldName != null) {
+				var world = worlds.computeIfAbsent(worldName, Bukkit::getWorld);
+				if (world != null && world.isChunkLoaded(x >> 4, z >> 4)) {
+					unloaded[index] = false;
+				}
+			}
+
+			if (System.nanoTime() - deadlineNanos >= 0) {
+				break;
+			}
+		}
+		return nextIndex >= total;
+	}
+
+	/**
+	 * Sorts the shopkeepers based on the captured locations.
+	 * <p>
+	 * Can be called on any thread, but only once the locations of all shopkeepers have been
+	 * {@link #capture(long) captured}. Does not access the Shopkeepers API.
+	 *
+	 * @return the sorted shopkeepers
+	 */
+	List<? extends Shopkeeper> sort() {
+		// To avoid comparing objects, we sort a primitive array of keys that combine the sort
+		// criteria with the shopkeeper index: Bit 62: Whether the shopkeeper's chunk is not loaded.
+		// Bits 31-61: The distance to the nearest hot spot. Bits 0-30: The index.
+		var total = shopkeepers.size();
+		var keys = new long[total];
+		for (int index = 0; index < total; index++) {
+			var worldName = worldNames[index];
+			var distance = NO_HOT_SPOT_DISTANCE;
+			if (worldName != null) {
+				distance = getDistance(hotSpots.get(worldName), xs[index], zs[index]);
+			}
+			var unloadedBit = unloaded[index] ? 1L : 0L;
+			keys[index] = (unloadedBit << 62) | ((long) distance << 31) | index;
+		}
+		Arrays.sort(keys);
+
+		var sorted = new ArrayList<Shopkeeper>(total);
+		for (var key : keys) {
+			sorted.add(shopkeepers.get((int) (key & Integer.MAX_VALUE)));
+		}
+		return sorted;
+	}
+
+	// World name -> flat array of hot spot x and z coordinates
+	private static Map<String, int[]> collectHotSpots(PopulationPriority priority) {
+		var hotSpots = new HashMap<String, List<Integer>>();
+		if (priority.players()) {
+			for (var player : Bukkit.getOnlinePlayers()) {
+				addHotSpot(hotSpots, player.getLocation());
+			}
+		}
+		if (priority.spawn()) {
+			for (var world : Bukkit.getWorlds()) {
+				addHotSpot(hotSpots, world.getSpawnLocation());
+			}
+		}
+		for (var hotSpot : priority.hotSpots()) {
+			addHotSpot(hotSpots, hotSpot.worldName(), hotSpot.x(), hotSpot.z());
+		}
+
+		var result = new HashMap<String, int[]>();
+		hotSpots.forEach((worldName, coordinates) -> {
+			result.put(
+					worldName,
+					coordinates.stream().mapToInt(Integer::intValue).toArray()
+			);
+		});
+		return result;
+	}
+
+	private static void addHotSpot(Map<String, List<Integer>> hotSpots, Location location) {
+		var world = location.getWorld();
+		if (world == null) {
+			return;
+		}
+		addHotSpot(hotSpots, world.getName(), location.getBlockX(), location.getBlockZ());
+	}
+
+	private static void addHotSpot(
+			Map<String, List<Integer>> hotSpots,
+			String worldName,
+			int x,
+			int z
+	) {
+		var coordinates = hotSpots.computeIfAbsent(worldName, key -> new ArrayList<>());
+		coordinates.add(x);
+		coordinates.add(z);
+	}
+
+	// The Chebyshev distance to the nearest hot spot, or NO_HOT_SPOT_DISTANCE.
+	private static int getDistance(int @Nullable [] hotSpots, int x, int z) {
+		if (hotSpots == null) {
+			return NO_HOT_SPOT_DISTANCE;
+		}
+
+		var distance = (long) NO_HOT_SPOT_DISTANCE;
+		for (int i = 0; i < hotSpots.length; i += 2) {
+			var dx = Math.abs((long) x - hotSpots[i]);
+			var dz = Math.abs((long) z - hotSpots[i + 1]);
+			distance = Math.min(distance, Math.max(dx, dz));
+		}
+		return (int) distance;
+	}
+}
@@ -1,42 +1,711 @@
 package de.blablubbabc.shopkeepers.bluemap;
 
-public class Settings {
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
 
-	private final ShopkeepersBlueMapPlugin plugin;
+import org.bukkit.configuration.ConfigurationSection;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
-	public Settings(ShopkeepersBlueMapPlugin plugin) {
-		this.plugin = plugin;
+import de.blablubbabc.shopkeepers.bluemap.MarkerTemplate.Placeholder;
+
+/**
+ * An immutable snapshot of the plugin settings.
+ * <p>
+ * The settings are loaded once from the config whenever the config is (re-)loaded. This avoids
+ * repeated config lookups in the hot path, and allows the settings to be safely accessed from
+ * any thread.
+ */
+public final class Settings {
+
+	private static final Set<Placeholder> MARKER_LABEL_PLACEHOLDERS = EnumSet.of(
+			Placeholder.SHOP_ID,
+			Placeholder.SHOP_UUID,
+			Placeholder.SHOP_NAME,
+			Placeholder.SHOP_OWNER_NAME
+	);
+	// Note: Don't include unescaped user input (e.g. the shopkeeper name) in the marker detail.
+	private static final Set<Placeholder> MARKER_DETAIL_PLACEHOLDERS = EnumSet.of(
+			Placeholder.SHOP_ID,
+			Placeholder.SHOP_UUID,
+			Placeholder.SHOP_TYPE,
+			Placeholder.SHOP_OBJECT_TYPE,
+			Placeholder.SHOP_OWNER_NAME,
+			Placeholder.SHOP_OFFERS_COUNT
+	);
+	private static final Set<Placeholder> CLUSTER_LABEL_PLACEHOLDERS = EnumSet.of(
+			Placeholder.SHOP_COUNT
+	);
+
+	/**
+	 * The marker settings for a specific shop type.
+	 *
+	 * @param icon
+	 *            the marker icon, not blank
+	 * @param anchorX
+	 *            the icon anchor x
+	 * @param anchorY
+	 *            the icon anchor y
+	 * @param labelTemplate
+	 *            the marker label template
+	 */
+	public record MarkerSettings(
+			String icon,
+			int anchorX,
+			int anchorY,
+			MarkerTemplate labelTemplate
+	) {
+	}
+
+	/**
+	 * The settings of one of our marker sets.
+	 *
+	 * @param id
+	 *            the marker set id
+	 * @param label
+	 *            the marker set label
+	 * @param defaultHidden
+	 *            whether the marker set is hidden by default
+	 * @param sorting
+	 *            the position of the marker set in the BlueMap marker set list
+	 */
+	public record MarkerSetSettings(String id, String label, boolean defaultHidden, int sorting) {
+	}
+
+	/**
+	 * The settings for clustering the shopkeeper markers.
+	 *
+	 * @param cellSize
+	 *            the size of the grid cells in blocks, positive
+	 * @param icon
+	 *            the cluster marker icon
+	 * @param anchorX
+	 *            the icon anchor x
+	 * @param anchorY
+	 *            the icon anchor y
+	 * @param labelTemplate
+	 *            the cluster marker label template
+	 * @param maxDetailEntries
+	 *            the maximum number of shopkeepers to list in the cluster marker detail
+	 */
+	public record ClusterSettings(
+			int cellSize,
+			String icon,
+			int anchorX,
+			int anchorY,
+			MarkerTemplate labelTemplate,
+			int maxDetailEntries
+	) {
+	}
+
+	/**
+	 * The settings for prioritizing the shopkeepers near the locations that players are likely to
+	 * look at on the map when adding the markers for all shopkeepers.
+	 *
+	 * @param players
+	 *            whether to prioritize the shopkeepers near online players
+	 * @param spawn
+	 *            whether to prioritize the shopkeepers near the world spawns
+	 * @param hotSpots
+	 *            additional locations at which to prioritize the shopkeepers
+	 */
+	public record PopulationPriority(boolean players, boolean spawn, List<HotSpot> hotSpots) {
+	}
+
+	/**
+	 * A configured location at which the shopkeepers are prioritized.
+	 *
+	 * @param worldName
+	 *            the world name
+	 * @param x
+	 *            the block x coordinate
+	 * @param z
+	 *            the block z coordinate
+	 */
+	public record HotSpot(String worldName, int x, int z) {
+	}
+
+	/**
+	 * The settings for sharing the shopkeeper markers between multiple servers.
+	 *
+	 * @param mode
+	 *            whether this server exports or imports the markers
+	 * @param directory
+	 *            the directory that is shared by the servers
+	 * @param serverId
+	 *            the id of this server, only used when exporting
+	 * @param importIntervalSeconds
+	 *            the interval in seconds at which the markers are imported, positive
+	 */
+	public record SharedStoreSettings(
+			SharedStoreMode mode,
+			String directory,
+			String serverId,
+			int importIntervalSeconds
+	) {
+	}
+
+	/**
+	 * The settings for writing the markers of statically hosted BlueMap maps.
+	 *
+	 * @param webRoot
+	 *            the web root of the statically hosted BlueMap web app
+	 * @param writeIntervalMillis
+	 *            the minimum interval in milliseconds between writes of the marker files
+	 * @param maps
+	 *            map id -&gt; world name, not empty
+	 */
+	public record StaticExportSettings(
+			String webRoot,
+			int writeIntervalMillis,
+			Map<String, String> maps
+	) {
+	}
+
+	/**
+	 * The settings for writing the marker changes to a feed in the BlueMap web root.
+	 *
+	 * @param writeIntervalMillis
+	 *            the minimum interval in milliseconds between writes to the feed
+	 * @param maxChangesPerFile
+	 *            the number of changes after which the feed file is rolled over, positive
+	 */
+	public record ChangeFeedSettings(int writeIntervalMillis, int maxChangesPerFile) {
+	}
+
+	/**
+	 * Whether this server exports or imports the shared markers.
+	 */
+	public enum SharedStoreMode {
+		/**
+		 * Exports the markers of this server's shopkeepers.
+		 */
+		EXPORT,
+		/**
+		 * Imports the markers that other servers exported.
+		 */
+		IMPORT;
+	}
+
+	/**
+	 * Loads the settings from the given config.
+	 *
+	 * @param config
+	 *            the config
+	 * @return the loaded settings
+	 */
+	public static Settings load(ConfigurationSection config) {
+		return new Settings(config);
+	}
+
+	private final boolean enabled;
+	private final boolean debug;
+	private final boolean markerCacheEnabled;
+	private final int populationTimeBudgetMillis;
+	private final int populationProgressLogIntervalSeconds;
+	// Null if disabled:
+	private final @Nullable PopulationPriority populationPriority;
+	private final boolean atomicRebuild;
+	private final int markerUpdateIntervalTicks;
+	private final int statsLogIntervalSeconds;
+	// Null if disabled:
+	private final @Nullable SharedStoreSettings sharedStoreSettings;
+	// Null if disabled:
+	private final @Nullable StaticExportSettings staticExportSettings;
+	// Null if disabled:
+	private final @Nullable ChangeFeedSettings changeFeedSettings;
+	private final String markerSetName;
+	private final boolean splitMarkerSets;
+	// Marker set id -> marker set settings
+	private final Map<String, MarkerSetSettings> markerSets;
+	// Shop type id -> marker settings. Only contains the shop types that have a marker icon.
+	private final Map<String, MarkerSettings> markerSettings;
+	private final String markerDetailText;
+	private final MarkerTemplate markerDetailTemplate;
+	// Null if clustering is disabled:
+	private final @Nullable ClusterSettings clusterSettings;
+	// Map id -> map rule
+	private final Map<String, MapRule> mapRules;
+	private final boolean offersCountRequired;
+	// Fingerprint of the settings that affect the rendered markers:
+	private final long markerFingerprint;
+
+	private Settings(ConfigurationSection config) {
+		this.enabled = config.getBoolean("enabled");
+		this.debug = config.getBoolean("debug");
+		this.markerCacheEnabled = config.getBoolean("marker-cache");
+		this.populationTimeBudgetMillis = config.getInt("population-time-budget-millis");
+		this.populationProgressLogIntervalSeconds = config.getInt(
+				"population-progress-log-interval-seconds"
+		);
+		if (config.getBoolean("population-priority.enabled")) {
+			var hotSpots = new ArrayList<HotSpot>();
+			var hotSpotsSection = config.getConfigurationSection("population-priority.hot-spots");
+			if (hotSpotsSection != null) {
+				for (var key : hotSpotsSection.getKeys(false)) {
+					var hotSpotSection = hotSpotsSection.getConfigurationSection(key);
+					if (hotSpotSection == null) {
+						continue;
+					}
+
+					var worldName = hotSpotSection.getString("world");
+					if (worldName == null || worldName.isEmpty()) {
+						continue;
+					}
+
+					hotSpots.add(new HotSpot(
+							worldName,
+							hotSpotSection.getInt("x"),
+							hotSpotSection.getInt("z")
+					));
+				}
+			}
+			this.populationPriority = new PopulationPriority(
+					config.getBoolean("population-priority.players"),
+					config.getBoolean("population-priority.spawn"),
+					List.copyOf(hotSpots)
+			);
+		} else {
+			this.populationPriority = null;
+		}
+		this.atomicRebuild = config.getBoolean("atomic-rebuild");
+		this.markerUpdateIntervalTicks = config.getInt("marker-update-interval-ticks");
+		this.statsLogIntervalSeconds = Math.max(0, config.getInt("stats-log-interval-seconds"));
+		this.sharedStoreSettings = loadSharedStoreSettings(config);
+		this.staticExportSettings = loadStaticExportSettings(config);
+		if (config.getBoolean("change-feed.enabled")) {
+			this.changeFeedSettings = new ChangeFeedSettings(
+					Math.max(0, config.getInt("change-feed.write-interval-millis")),
+					Math.max(1, config.getInt("change-feed.max-changes-per-file"))
+			);
+		} else {
+			this.changeFeedSettings = null;
+		}
+		this.markerSetName = config.getString("marker-set-name");
+		this.splitMarkerSets = config.getBoolean("split-marker-sets");
+
+		var markerSets = new HashMap<String, MarkerSetSettings>();
+		if (!splitMarkerSets) {
+			markerSets.put(
+					MarkerManager.MARKERSET_ID,
+					new MarkerSetSettings(MarkerManager.MARKERSET_ID, markerSetName, false, 0)
+			);
+		}
+
+		var markerSettings = new HashMap<String, MarkerSettings>();
+		var markersSection = config.getConfigurationSection("markers");
+		if (markersSection != null) {
+			for (var shopTypeId : markersSection.getKeys(false)) {
+				var icon = markersSection.getString(shopTypeId + ".icon", "");
+				if (icon == null || icon.isBlank()) {
+					// No markers for this shop type.
+					continue;
+				}
+
+				if (splitMarkerSets) {
+					// Sorted in the order of the shop types in the config:
+					var markerSetId = this.getMarkerSetId(shopTypeId);
+					markerSets.put(markerSetId, new MarkerSetSettings(
+							markerSetId,
+							markersSection.getString(shopTypeId + ".marker-set-name", shopTypeId),
+							markersSection.getBoolean(shopTypeId + ".marker-set-hidden"),
+							markerSets.size()
+					));
+				}
+
+				markerSettings.put(shopTypeId, new MarkerSettings(
+						icon,
+						markersSection.getInt(shopTypeId + ".anchor-x"),
+						markersSection.getInt(shopTypeId + ".anchor-y"),
+						MarkerTemplate.compile(
+								markersSection.getString(shopTypeId + ".label", ""),
+								MARKER_LABEL_PLACEHOLDERS
+						)
+				));
+			}
+		}
+		this.markerSettings = Map.copyOf(markerSettings);
+		this.markerSets = Map.copyOf(markerSets);
+
+		var markerDetailText = config.getString("marker-detail");
+		this.markerDetailText = (markerDetailText != null) ? markerDetailText : "";
+		this.markerDetailTemplate = MarkerTemplate.compile(
+				this.markerDetailText.replaceAll("\\r\\n|\\r|\\n", "<br>"),
+				MARKER_DETAIL_PLACEHOLDERS
+		);
+
+		if (config.getBoolean("clustering.enabled")) {
+			this.clusterSettings = new ClusterSettings(
+					Math.max(1, config.getInt("clustering.cell-size")),
+					config.getString("clustering.icon", ""),
+					config.getInt("clustering.anchor-x"),
+					config.getInt("clustering.anchor-y"),
+					MarkerTemplate.compile(
+							config.getString("clustering.label", ""),
+							CLUSTER_LABEL_PLACEHOLDERS
+					),
+					Math.max(0, config.getInt("clustering.max-detail-entries"))
+			);
+		} else {
+			this.clusterSettings = null;
+		}
+
+		var mapRules = new HashMap<String, MapRule>();
+		var mapRulesSection = config.getConfigurationSection("map-rules");
+		if (mapRulesSection != null) {
+			for (var mapId : mapRulesSection.getKeys(false)) {
+				var mapRuleSection = mapRulesSection.getConfigurationSection(mapId);
+				if (mapRuleSection == null) {
+					continue;
+				}
+
+				mapRules.put(mapId, MapRule.load(mapRuleSection));
+			}
+		}
+		this.mapRules = Map.copyOf(mapRules);
+
+		this.offersCountRequired = markerDetailTemplate.uses(Placeholder.SHOP_OFFERS_COUNT)
+				|| this.mapRules.values().stream().anyMatch(mapRule -> mapRule.minOffers() > 0);
+		this.markerFingerprint = this.calculateMarkerFingerprint();
+	}
+
+	private static @Nullable SharedStoreSettings loadSharedStoreSettings(
+			ConfigurationSection config
+	) {
+		var mode = switch (config.getString("shared-store.mode", "none").toLowerCase(Locale.ROOT)) {
+			case "export" -> SharedStoreMode.EXPORT;
+			case "import" -> SharedStoreMode.IMPORT;
+			default -> null;
+		};
+		if (mode == null) {
+			return null;
+		}
+
+		var directory = config.getString("shared-store.directory", "");
+		if (directory.isBlank()) {
+			return null;
+		}
+
+		return new SharedStoreSettings(
+				mode,
+				directory,
+				config.getString("shared-store.server-id", ""),
+				Math.max(1, config.getInt("shared-store.import-interval-seconds"))
+		);
+	}
+
+	private static @Nullable StaticExportSettings loadStaticExportSettings(
+			ConfigurationSection config
+	) {
+		if (!config.getBoolean("static-export.enabled")) {
+			return null;
+		}
+
+		var webRoot = config.getString("static-export.web-root", "");
+		if (webRoot.isBlank()) {
+			return null;
+		}
+
+		var maps = new HashMap<String, String>();
+		var mapsSection = config.getConfigurationSection("static-export.maps");
+		if (mapsSection != null) {
+			for (var mapId : mapsSection.getKeys(false)) {
+				var worldName = mapsSection.getString(mapId);
+				if (worldName == null || worldName.isEmpty()) {
+					continue;
+				}
+
+				maps.put(mapId, worldName);
+			}
+		}
+		if (maps.isEmpty()) {
+			return null;
+		}
+
+		return new StaticExportSettings(
+				webRoot,
+				Math.max(0, config.getInt("static-export.write-interval-millis")),
+				Map.copyOf(maps)
+		);
+	}
+
+	private long calculateMarkerFingerprint() {
+		var fingerprint = new Fingerprint();
+		// Sorted, since the iteration order of the maps is not stable across restarts:
+		var shopTypeIds = new TreeSet<>(markerSettings.keySet());
+		fingerprint.add(shopTypeIds.size());
+		for (var shopTypeId : shopTypeIds) {
+			var shopTypeMarkerSettings = markerSettings.get(shopTypeId);
+			fingerprint.add(shopTypeId)
+					.add(shopTypeMarkerSettings.icon())
+					.add(shopTypeMarkerSettings.anchorX())
+					.add(shopTypeMarkerSettings.anchorY());
+			shopTypeMarkerSettings.labelTemplate().addTo(fingerprint);
+		}
+
+		markerDetailTemplate.addTo(fingerprint);
+
+		fingerprint.add(clusterSettings != null);
+		if (clusterSettings != null) {
+			fingerprint.add(clusterSettings.cellSize())
+					.add(clusterSettings.icon())
+					.add(clusterSettings.anchorX())
+					.add(clusterSettings.anchorY())
+					.add(clusterSettings.maxDetailEntries());
+			clusterSettings.labelTemplate().addTo(fingerprint);
+		}
+
+		var mapIds = new TreeSet<>(mapRules.keySet());
+		fingerprint.add(mapIds.size());
+		for (var mapId : mapIds) {
+			fingerprint.add(mapId);
+			mapRules.get(mapId).addTo(fingerprint);
+		}
+		return fingerprint.get();
 	}
 
 	public boolean isEnabled() {
-		return plugin.getConfig().getBoolean("enabled");
+		return enabled;
 	}
 
 	public boolean isDebugging() {
-		return plugin.getConfig().getBoolean("debug");
+		return debug;
+	}
+
+	public boolean isMarkerCacheEnabled() {
+		return markerCacheEnabled;
+	}
+
+	public int getPopulationTimeBudgetMillis() {
+		return populationTimeBudgetMillis;
+	}
+
+	public int getPopulationProgressLogIntervalSeconds() {
+		return populationProgressLogIntervalSeconds;
+	}
+
+	/**
+	 * Gets the settings for prioritizing shopkeepers when adding the markers for all shopkeepers.
+	 *
+	 * @return the population priority settings, or <code>null</code> if the shopkeepers are added
+	 *         in the order of the shopkeeper registry
+	 */
+	public @Nullable PopulationPriority getPopulationPriority() {
+		return populationPriority;
+	}
+
+	public boolean isAtomicRebuild() {
+		return atomicRebuild;
+	}
+
+	public int getMarkerUpdateIntervalTicks() {
+		return markerUpdateIntervalTicks;
+	}
+
+	public int getStatsLogIntervalSeconds() {
+		return statsLogIntervalSeconds;
+	}
+
+	/**
+	 * Gets the settings for sharing the markers between multiple servers.
+	 *
+	 * @return the shared store settings, or <code>null</code> if the markers are not shared
+	 */
+	public @Nullable SharedStoreSettings getSharedStoreSettings() {
+		return sharedStoreSettings;
+	}
+
+	/**
+	 * Gets the settings for writing the markers of statically hosted BlueMap maps.
+	 *
+	 * @return the static export settings, or <code>null</code> if disabled
+	 */
+	public @Nullable StaticExportSettings getStaticExportSettings() {
+		return staticExportSettings;
+	}
+
+	/**
+	 * Gets the settings for writing the marker changes to a feed in the BlueMap web root.
+	 *
+	 * @return the change feed settings, or <code>null</code> if disabled
+	 */
+	public @Nullable ChangeFeedSettings getChangeFeedSettings() {
+		return changeFeedSettings;
 	}
 
 	public String getMarkerSetName() {
-		return plugin.getConfig().getString("marker-set-name");
+		return markerSetName;
+	}
+
+	public boolean isSplitMarkerSets() {
+		return splitMarkerSets;
 	}
 
-	public String getMarkerIcon(String shopTypeId) {
-		return plugin.getConfig().getString("markers." + shopTypeId + ".icon", "");
+	/**
+	 * Gets the id of the marker set for the markers of the specified shop type.
+	 *
+	 * @param shopTypeId
+	 *            the shop type id
+	 * @return the marker set id
+	 */
+	public String getMarkerSetId(String shopTypeId) {
+		if (!splitMarkerSets) {
+			return MarkerManager.MARKERSET_ID;
+		}
+		return MarkerManager.MARKERSET_ID + "." + shopTypeId;
 	}
 
-	public int getMarkerAnchorX(String shopTypeId) {
-		return plugin.getConfig().getInt("markers." + shopTypeId + ".anchor-x");
+	/**
+	 * Gets the settings of the specified marker set.
+	 *
+	 * @param markerSetId
+	 *            the marker set id
+	 * @return the marker set settings, uses the {@link #getMarkerSetName() marker set name} as
+	 *         label if the marker set is not configured
+	 */
+	public MarkerSetSettings getMarkerSetSettings(String markerSetId) {
+		var markerSetSettings = markerSets.get(markerSetId);
+		if (markerSetSettings == null) {
+			return new MarkerSetSettings(markerSetId, markerSetName, false, markerSets.size());
+		}
+		return markerSetSettings;
 	}
 
-	public int getMarkerAnchorY(String shopTypeId) {
-		return plugin.getConfig().getInt("markers." + shopTypeId + ".anchor-y");
+	/**
+	 * Checks if the marker set settings differ between the given previous settings and these
+	 * settings.
+	 *
+	 * @param previous
+	 *            the previous settings
+	 * @return <code>true</code> if the marker set settings changed
+	 */
+	public boolean isMarkerSetsChanged(Settings previous) {
+		return !markerSets.equals(previous.markerSets);
 	}
 
-	public String getMarkerLabel(String shopTypeId) {
-		return plugin.getConfig().getString("markers." + shopTypeId + ".label", "");
+	/**
+	 * Gets the marker settings for the specified shop type.
+	 *
+	 * @param shopTypeId
+	 *            the shop type id
+	 * @return the marker settings, or <code>null</code> if no markers are shown for this shop type
+	 */
+	public @Nullable MarkerSettings getMarkerSettings(String shopTypeId) {
+		return markerSettings.get(shopTypeId);
 	}
 
 	public String getMarkerDetailText() {
-		return plugin.getConfig().getString("marker-detail");
+		return markerDetailText;
+	}
+
+	public MarkerTemplate getMarkerDetailTemplate() {
+		return markerDetailTemplate;
+	}
+
+	/**
+	 * Gets the clustering settings.
+	 *
+	 * @return the clustering settings, or <code>null</code> if clustering is disabled
+	 */
+	public @Nullable ClusterSettings getClusterSettings() {
+		return clusterSettings;
+	}
+
+	/**
+	 * Checks if there are any map rules.
+	 *
+	 * @return <code>true</code> if there are map rules
+	 */
+	public boolean hasMapRules() {
+		return !mapRules.isEmpty();
+	}
+
+	/**
+	 * Gets the rule for the specified map.
+	 *
+	 * @param mapId
+	 *            the map id
+	 * @return the map rule, or {@link MapRule#DEFAULT} if there is no rule for the map
+	 */
+	public MapRule getMapRule(String mapId) {
+		return mapRules.getOrDefault(mapId, MapRule.DEFAULT);
+	}
+
+	/**
+	 * Checks if the number of offers of the shopkeepers is required, either by the marker detail
+	 * or by a map rule.
+	 * <p>
+	 * Building the trading recipes is comparatively expensive. We therefore only capture the
+	 * number of offers if it is actually used.
+	 *
+	 * @return <code>true</code> if the number of offers is required
+	 */
+	public boolean isOffersCountRequired() {
+		return offersCountRequired;
+	}
+
+	/**
+	 * Gets a fingerprint of the settings that affect the rendered markers.
+	 * <p>
+	 * The fingerprint is stable across server restarts.
+	 *
+	 * @return the fingerprint
+	 */
+	public long getMarkerFingerprint() {
+		return markerFingerprint;
+	}
+
+	/**
+	 * Checks if applying these settings instead of the given previous settings requires a full
+	 * restart of the integration, instead of an incremental update of the existing markers.
+	 *
+	 * @param previous
+	 *            the previous settings
+	 * @return <code>true</code> if a restart is required
+	 */
+	public boolean requiresRestart(Settings previous) {
+		return enabled != previous.enabled
+				|| markerCacheEnabled != previous.markerCacheEnabled
+				|| splitMarkerSets != previous.splitMarkerSets
+				|| !Objects.equals(sharedStoreSettings, previous.sharedStoreSettings)
+				|| !Objects.equals(staticExportSettings, previous.staticExportSettings)
+				|| !Objects.equals(changeFeedSettings, previous.changeFeedSettings)
+				|| !Objects.equals(clusterSettings, previous.clusterSettings)
+				|| !mapRules.equals(previous.mapRules);
+	}
+
+	/**
+	 * Gets the shop types whose markers differ between the given previous settings and these
+	 * settings.
+	 * <p>
+	 * This includes the shop types that only had markers in the previous settings, or only have
+	 * markers in these settings. If the marker detail changed, this includes all shop types with
+	 * markers.
+	 *
+	 * @param previous
+	 *            the previous settings
+	 * @return the ids of the affected shop types, can be empty
+	 */
+	public Set<String> getChangedMarkerShopTypes(Settings previous) {
+		var shopTypeIds = new HashSet<String>();
+		shopTypeIds.addAll(previous.markerSettings.keySet());
+		shopTypeIds.addAll(markerSettings.keySet());
+
+		if (!markerDetailTemplate.equals(previous.markerDetailTemplate)) {
+			return shopTypeIds;
+		}
+
+		shopTypeIds.removeIf(shopTypeId -> Objects.equals(
+				previous.getMarkerSettings(shopTypeId),
+				this.getMarkerSettings(shopTypeId)
+		));
+		return shopTypeIds;
 	}
 }
@@ -0,0 +1,146 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exports the rendered markers of this server's shopkeepers to the {@link SharedMarkerStore}.
+ * <p>
+ * The marker changes are collected during each marker operation and then appended to the
+ * server's log at once. Unchanged markers are not exported again. When the log has grown larger
+ * than the number of exported markers, it is compacted into a new snapshot.
+ * <p>
+ * Not thread-safe: Only used on the marker thread.
+ */
+final class SharedMarkerExporter implements MarkerExporter {
+
+	// The minimum number of logged changes before the log is compacted:
+	private static final int MIN_COMPACTION_CHANGES = 1024;
+
+	private final Logger logger;
+	private final SharedMarkerStore store;
+	private final String serverId;
+
+	// Shopkeeper id -> exported markers
+	private final Map<Integer, MarkerCache.Entry> exported = new HashMap<>();
+	private final List<SharedMarkerStore.Change> pendingChanges = new ArrayList<>();
+	// The shopkeepers that have not been exported again since the resync started:
+	private final Set<Integer> unreconciled = new HashSet<>();
+	private boolean resyncing = false;
+
+	private long epoch = 0L;
+	private int loggedChanges = 0;
+	// Set if writing to the store failed. We then write a new snapshot during the next flush.
+	private boolean compactionRequired = true;
+
+	SharedMarkerExporter(Logger logger, SharedMarkerStore store, String serverId) {
+		this.logger = logger;
+		this.store = store;
+		this.serverId = serverId;
+	}
+
+	/**
+	 * Loads the previously exported markers of this server.
+	 * <p>
+	 * The loaded markers are compacted into a new snapshot during the next {@link #flush()}.
+	 */
+	void load() {
+		try {
+			var snapshot = store.readSnapshot(serverId);
+			if (snapshot == null) {
+				return;
+			}
+
+			epoch = snapshot.epoch();
+			for (var entry : snapshot.entries()) {
+				exported.put(entry.shopkeeper().id(), entry);
+			}
+			store.readChanges(serverId, epoch, SharedMarkerStore.LOG_HEADER_SIZE, change -> {
+				var entry = change.entry();
+				if (entry != null) {
+					exported.put(change.shopkeeperId(), entry);
+				} else {
+					exported.remove(change.shopkeeperId());
+				}
+			});
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to load the exported markers of this server from "
+					+ store.getDirectory(), e);
+			exported.clear();
+		}
+	}
+
+	@Override
+	public void put(MarkerCache.Entry entry) {
+		var shopkeeperId = entry.shopkeeper().id();
+		unreconciled.remove(shopkeeperId);
+		if (entry.equals(exported.get(shopkeeperId))) {
+			return;
+		}
+
+		exported.put(shopkeeperId, entry);
+		pendingChanges.add(new SharedMarkerStore.Change(shopkeeperId, entry));
+	}
+
+	@Override
+	public void remove(int shopkeeperId) {
+		unreconciled.remove(shopkeeperId);
+		if (exported.remove(shopkeeperId) == null) {
+			return;
+		}
+
+		pendingChanges.add(new SharedMarkerStore.Change(shopkeeperId, null));
+	}
+
+	@Override
+	public void beginResync() {
+		resyncing = true;
+		unreconciled.clear();
+		unreconciled.addAll(exported.keySet());
+	}
+
+	@Override
+	public void endResync() {
+		if (!resyncing) {
+			return;
+		}
+		resyncing = false;
+
+		var removed = new ArrayList<>(unreconciled);
+		removed.forEach(this::remove);
+		unreconciled.clear();
+	}
+
+	@Override
+	public void flush() {
+		if (!compactionRequired && pendingChanges.isEmpty()) {
+			return;
+		}
+
+		try {
+			var changes = loggedChanges + pendingChanges.size();
+			if (compactionRequired || changes > Math.max(MIN_COMPACTION_CHANGES, exported.size())) {
+				// The epoch needs to differ from any previous epoch, even if the previous files
+				// were lost:
+				epoch = Math.max(epoch + 1, System.currentTimeMillis());
+				store.writeSnapshot(serverId, epoch, exported.values());
+				loggedChanges = 0;
+				compactionRequired = false;
+			} else {
+				store.appendChanges(serverId, pendingChanges);
+				loggedChanges = changes;
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to export the markers to " + store.getDirectory(), e);
+			compactionRequired = true;
+		}
+		pendingChanges.clear();
+	}
+}
@@ -0,0 +1,154 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Imports the markers that other servers exported to the {@link SharedMarkerStore}, and merges
+ * them into our marker sets.
+ * <p>
+ * For each server, we remember the epoch of its snapshot and our read offset in its log. Each
+ * poll then only applies the changes that were logged since the previous poll. The full snapshot
+ * is only read again when the server compacted its log.
+ * <p>
+ * The imported shopkeepers are assigned negative local ids, so that they do not collide with our
+ * own shopkeepers or the shopkeepers of other servers. The imported markers are added to the maps
+ * of the worlds with the same names.
+ * <p>
+ * Not thread-safe: Only used on the marker thread.
+ */
+final class SharedMarkerImporter {
+
+	private static final class ImportedServer {
+
+		private long epoch = -1L;
+		private long logOffset = SharedMarkerStore.LOG_HEADER_SIZE;
+		// Shopkeeper id on the exporting server -> local shopkeeper id
+		private final Map<Integer, Integer> localIds = new HashMap<>();
+	}
+
+	private final Logger logger;
+	private final SharedMarkerStore store;
+
+	// Server id -> imported server
+	private final Map<String, ImportedServer> servers = new HashMap<>();
+	private int nextLocalId = -1;
+	// The marker manager that we imported the markers into:
+	private @Nullable MarkerManager markerManager = null;
+
+	/**
+	 * Creates a new importer.
+	 *
+	 * @param logger
+	 *            the logger
+	 * @param store
+	 *            the shared marker store
+	 */
+	SharedMarkerImporter(Logger logger, SharedMarkerStore store) {
+		this.logger = logger;
+		this.store = store;
+	}
+
+	/**
+	 * Applies the changes of all servers since the previous poll to the given marker manager.
+	 *
+	 * @param markerManager
+	 *            the marker manager
+	 */
+	void poll(MarkerManager markerManager) {
+		if (this.markerManager != markerManager) {
+			// The BlueMap API has been re-enabled: Import all markers again.
+			this.markerManager = markerManager;
+			servers.clear();
+		}
+
+		HashSet<String> serverIds;
+		try {
+			serverIds = new HashSet<>(store.getServerIds());
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to list the exported markers in "
+					+ store.getDirectory(), e);
+			return;
+		}
+
+		// Remove the markers of the servers whose exported markers were removed:
+		for (var serverId : new ArrayList<>(servers.keySet())) {
+			if (!serverIds.contains(serverId)) {
+				var server = servers.remove(serverId);
+				server.localIds.values().forEach(markerManager::removeImportedShopkeeper);
+				logger.info("Removed the imported BlueMap markers of server " + serverId + ".");
+			}
+		}
+
+		for (var serverId : serverIds) {
+			var server = servers.computeIfAbsent(serverId, key -> new ImportedServer());
+			try {
+				this.poll(markerManager, serverId, server);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to import the BlueMap markers of server "
+						+ serverId, e);
+			}
+		}
+	}
+
+	private void poll(
+			MarkerManager markerManager,
+			String serverId,
+			ImportedServer server
+	) throws IOException {
+		if (store.readSnapshotEpoch(serverId) != server.epoch) {
+			var snapshot = store.readSnapshot(serverId);
+			if (snapshot == null) {
+				return;
+			}
+
+			var previousIds = new HashSet<>(server.localIds.keySet());
+			for (var entry : snapshot.entries()) {
+				previousIds.remove(entry.shopkeeper().id());
+				this.importShopkeeper(markerManager, server, entry);
+			}
+			for (var shopkeeperId : previousIds) {
+				markerManager.removeImportedShopkeeper(server.localIds.remove(shopkeeperId));
+			}
+
+			server.epoch = snapshot.epoch();
+			server.logOffset = SharedMarkerStore.LOG_HEADER_SIZE;
+			logger.info("Imported the BlueMap markers of " + snapshot.entries().size()
+					+ " shopkeepers of server " + serverId + ".");
+		}
+
+		var logOffset = store.readChanges(serverId, server.epoch, server.logOffset, change -> {
+			var entry = change.entry();
+			if (entry != null) {
+				this.importShopkeeper(markerManager, server, entry);
+			} else {
+				var localId = server.localIds.remove(change.shopkeeperId());
+				if (localId != null) {
+					markerManager.removeImportedShopkeeper(localId);
+				}
+			}
+		});
+		if (logOffset >= 0) {
+			server.logOffset = logOffset;
+		}
+	}
+
+	private void importShopkeeper(
+			MarkerManager markerManager,
+			ImportedServer server,
+			MarkerCache.Entry entry
+	) {
+		var localId = server.localIds.computeIfAbsent(
+				entry.shopkeeper().id(),
+				key -> nextLocalId--
+		);
+		markerManager.importShopkeeper(localId, entry);
+	}
+}
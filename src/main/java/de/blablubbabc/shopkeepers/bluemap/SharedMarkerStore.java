@@ -0,0 +1,397 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A directory that is shared by multiple servers, and that stores the rendered shopkeeper
+ * markers of each exporting server.
+ * <p>
+ * Each exporting server owns two files:
+ * <ul>
+ * <li><code>&lt;server-id&gt;.snapshot</code>: The markers of all of the server's shopkeepers.
+ * <li><code>&lt;server-id&gt;.log</code>: An append-only log of the marker changes since the
+ * snapshot.
+ * </ul>
+ * Both files are tagged with the same epoch. When the log grows too large, the exporting server
+ * compacts it into a new snapshot with a new epoch, and starts a new log. Importing servers can
+ * therefore apply the changes incrementally by remembering the epoch and their read offset in the
+ * log, and only need to read the full snapshot again when the epoch changes.
+ * <p>
+ * The markers are stored in the format of the {@link MarkerCache}.
+ */
+final class SharedMarkerStore {
+
+	/**
+	 * A snapshot of the markers of a server.
+	 *
+	 * @param epoch
+	 *            the epoch
+	 * @param entries
+	 *            the markers
+	 */
+	record Snapshot(long epoch, List<MarkerCache.Entry> entries) {
+	}
+
+	/**
+	 * A change of the markers of a shopkeeper.
+	 *
+	 * @param shopkeeperId
+	 *            the shopkeeper id on the exporting server
+	 * @param entry
+	 *            the new markers of the shopkeeper, or <code>null</code> if its markers were
+	 *            removed
+	 */
+	record Change(int shopkeeperId, MarkerCache.@Nullable Entry entry) {
+	}
+
+	private static final Pattern SERVER_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+	private static final String SNAPSHOT_SUFFIX = ".snapshot";
+	private static final String LOG_SUFFIX = ".log";
+
+	private static final int SNAPSHOT_MAGIC = 0x534B4253; // "SKBS"
+	private static final int LOG_MAGIC = 0x534B424C; // "SKBL"
+	private static final int VERSION = 1;
+	// Larger changes indicate a corrupted log, and are rejected instead of being allocated:
+	private static final int MAX_CHANGE_LENGTH = 16 * 1024 * 1024;
+	// Magic, version, epoch:
+	static final long LOG_HEADER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES;
+
+	private static final byte CHANGE_PUT = 1;
+	private static final byte CHANGE_REMOVE = 2;
+
+	/**
+	 * Checks if the given server id is valid.
+	 * <p>
+	 * The server ids are used as file names, and can therefore only contain letters, digits,
+	 * underscores and hyphens.
+	 *
+	 * @param serverId
+	 *            the server id
+	 * @return <code>true</code> if the server id is valid
+	 */
+	static boolean isValidServerId(String serverId) {
+		return SERVER_ID_PATTERN.matcher(serverId).matches();
+	}
+
+	private final Path directory;
+
+	SharedMarkerStore(Path directory) {
+		this.directory = directory;
+	}
+
+	Path getDirectory() {
+		return directory;
+	}
+
+	private Path getSnapshotFile(String serverId) {
+		return directory.resolve(serverId + SNAPSHOT_SUFFIX);
+	}
+
+	private Path getLogFile(String serverId) {
+		return directory.resolve(serverId + LOG_SUFFIX);
+	}
+
+	/**
+	 * Gets the ids of the servers that have exported their markers.
+	 *
+	 * @return the server ids
+	 * @throws IOException
+	 *             if the directory cannot be read
+	 */
+	List<String> getServerIds() throws IOException {
+		var serverIds = new ArrayList<String>();
+		if (!Files.isDirectory(directory)) {
+			return serverIds;
+		}
+
+		try (var files = Files.list(directory)) {
+			for (var file : (Iterable<Path>) files::iterator) {
+				var fileName = file.getFileName().toString();
+				if (!fileName.endsWith(SNAPSHOT_SUFFIX)) {
+					continue;
+				}
+
+				var serverId = fileName.substring(0, fileName.length() - SNAPSHOT_SUFFIX.length());
+				if (isValidServerId(serverId)) {
+					serverIds.add(serverId);
+				}
+			}
+		}
+		return serverIds;
+	}
+
+	/**
+	 * Reads only the epoch of the snapshot of the specified server.
+	 *
+	 * @param serverId
+	 *            the server id
+	 * @return the epoch, or <code>-1</code> if there is no snapshot
+	 * @throws IOException
+	 *             if the snapshot cannot be read
+	 */
+	long readSnapshotEpoch(String serverId) throws IOException {
+		try (var in = this.openSnapshot(serverId)) {
+			return in.readLong();
+		} catch (NoSuchFileException e) {
+			return -1L;
+		}
+	}
+
+	/**
+	 * Reads the snapshot of the specified server.
+	 *
+	 * @param serverId
+	 *            the server id
+	 * @return the snapshot, or <code>null</code> if there is no snapshot
+	 * @throws IOException
+	 *             if the snapshot cannot be read
+	 */
+	@Nullable Snapshot readSnapshot(String serverId) throws IOException {
+		try (var in = this.openSnapshot(serverId)) {
+			var epoch = in.readLong();
+			var count = in.readInt();
+			if (count < 0) {
+				throw new IOException("Invalid entry count: " + count);
+			}
+
+			// Not presized: The count is only trusted once the entries have been read.
+			var entries = new ArrayList<MarkerCache.Entry>();
+			for (int i = 0; i < count; i++) {
+				entries.add(MarkerCache.readEntry(in).entry());
+			}
+			return new Snapshot(epoch, entries);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	// Reads the header, up to the epoch.
+	private DataInputStream openSnapshot(String serverId) throws IOException {
+		var in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(Files.newInputStream(this.getSnapshotFile(serverId)))
+		));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Unsupported format: " + this.getSnapshotFile(serverId));
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return in;
+	}
+
+	/**
+	 * Reads the changes of the specified server, starting at the given offset in the log.
+	 * <p>
+	 * A change that is only partially written yet is not read.
+	 *
+	 * @param serverId
+	 *            the server id
+	 * @param epoch
+	 *            the expected epoch of the log
+	 * @param offset
+	 *            the offset to start reading at, at least {@link #LOG_HEADER_SIZE}
+	 * @param consumer
+	 *            receives the read changes
+	 * @return the offset after the last read change, or <code>-1</code> if there is no log, or if
+	 *         the log belongs to a different epoch
+	 * @throws IOException
+	 *             if the log cannot be read
+	 */
+	long readChanges(
+			String serverId,
+			long epoch,
+			long offset,
+			Consumer<Change> consumer
+	) throws IOException {
+		assert offset >= LOG_HEADER_SIZE;
+		try (var channel = FileChannel.open(this.getLogFile(serverId), StandardOpenOption.READ)) {
+			var header = ByteBuffer.allocate((int) LOG_HEADER_SIZE);
+			if (!readFully(channel, header, 0L)) {
+				return -1L;
+			}
+			header.flip();
+			if (header.getInt() != LOG_MAGIC || header.getInt() != VERSION) {
+				throw new IOException("Unsupported format: " + this.getLogFile(serverId));
+			}
+			if (header.getLong() != epoch) {
+				return -1L;
+			}
+
+			var position = offset;
+			var lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+			while (true) {
+				lengthBuffer.clear();
+				if (!readFully(channel, lengthBuffer, position)) {
+					break;
+				}
+				lengthBuffer.flip();
+				var length = lengthBuffer.getInt();
+				if (length <= 0 || length > MAX_CHANGE_LENGTH) {
+					throw new IOException("Invalid change length: " + length);
+				}
+				if (length > channel.size() - position - Integer.BYTES) {
+					// Not fully written yet.
+					break;
+				}
+
+				var changeBuffer = ByteBuffer.allocate(length);
+				if (!readFully(channel, changeBuffer, position + Integer.BYTES)) {
+					// Not fully written yet.
+					break;
+				}
+
+				consumer.accept(readChange(changeBuffer.array()));
+				position += Integer.BYTES + length;
+			}
+			return position;
+		} catch (NoSuchFileException e) {
+			return -1L;
+		}
+	}
+
+	// Returns false if the end of the file is reached before the buffer is full.
+	private static boolean readFully(
+			FileChannel channel,
+			ByteBuffer buffer,
+			long position
+	) throws IOException {
+		while (buffer.hasRemaining()) {
+			var read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Change readChange(byte[] data) throws IOException {
+		try (var in = new DataInputStream(new ByteArrayInputStream(data))) {
+			var type = in.readByte();
+			var shopkeeperId = in.readInt();
+			return switch (type) {
+				case CHANGE_PUT -> new Change(shopkeeperId, MarkerCache.readEntry(in).entry());
+				case CHANGE_REMOVE -> new Change(shopkeeperId, null);
+				default -> throw new IOException("Invalid change type: " + type);
+			};
+		} catch (EOFException e) {
+			throw new IOException("Truncated change", e);
+		}
+	}
+
+	/**
+	 * Replaces the snapshot of the specified server, and starts a new empty log.
+	 * <p>
+	 * The files are first written to temporary files, which then replace the previous files.
+	 *
+	 * @param serverId
+	 *            the server id
+	 * @param epoch
+	 *            the new epoch
+	 * @param entries
+	 *            the markers
+	 * @throws IOException
+	 *             if the files cannot be written
+	 */
+	void writeSnapshot(
+			String serverId,
+			long epoch,
+			Collection<MarkerCache.Entry> entries
+	) throws IOException {
+		Files.createDirectories(directory);
+
+		var snapshotFile = this.getSnapshotFile(serverId);
+		var tempSnapshotFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+		try (var out = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(Files.newOutputStream(tempSnapshotFile))
+		))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(epoch);
+			out.writeInt(entries.size());
+			for (var entry : entries) {
+				MarkerCache.writeEntry(out, entry);
+			}
+		}
+
+		var logFile = this.getLogFile(serverId);
+		var tempLogFile = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+		try (var out = new DataOutputStream(Files.newOutputStream(tempLogFile))) {
+			out.writeInt(LOG_MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(epoch);
+		}
+
+		// Importers ignore the previous log once they have seen the new snapshot epoch:
+		move(tempSnapshotFile, snapshotFile);
+		move(tempLogFile, logFile);
+	}
+
+	private static void move(Path source, Path target) throws IOException {
+		Files.move(
+				source,
+				target,
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE
+		);
+	}
+
+	/**
+	 * Appends the given changes to the log of the specified server.
+	 *
+	 * @param serverId
+	 *            the server id
+	 * @param changes
+	 *            the changes
+	 * @throws IOException
+	 *             if the changes cannot be written
+	 */
+	void appendChanges(String serverId, List<Change> changes) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		var out = new DataOutputStream(bytes);
+		var changeBytes = new ByteArrayOutputStream();
+		var changeOut = new DataOutputStream(changeBytes);
+		for (var change : changes) {
+			changeBytes.reset();
+			var entry = change.entry();
+			changeOut.writeByte(entry != null ? CHANGE_PUT : CHANGE_REMOVE);
+			changeOut.writeInt(change.shopkeeperId());
+			if (entry != null) {
+				MarkerCache.writeEntry(changeOut, entry);
+			}
+			changeOut.flush();
+
+			out.writeInt(changeBytes.size());
+			changeBytes.writeTo(out);
+		}
+		out.flush();
+
+		// Written at once, so that importers rarely observe partially written changes:
+		Files.write(this.getLogFile(serverId), bytes.toByteArray(), StandardOpenOption.APPEND);
+	}
+}
@@ -0,0 +1,197 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.UUID;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.nisovin.shopkeepers.api.shopkeeper.Shopkeeper;
+import com.nisovin.shopkeepers.api.shopkeeper.admin.regular.RegularAdminShopkeeper;
+import com.nisovin.shopkeepers.api.shopkeeper.player.PlayerShopkeeper;
+
+/**
+ * An immutable snapshot of the shopkeeper data that is required to create the shopkeeper's
+ * markers.
+ * <p>
+ * The Shopkeepers API can only be accessed on the main thread. We therefore capture the data on
+ * the main thread and then create the markers off the main thread.
+ *
+ * @param id
+ *            the shopkeeper id
+ * @param uniqueId
+ *            the shopkeeper unique id
+ * @param worldName
+ *            the world name, or <code>null</code> for virtual shopkeepers
+ * @param x
+ *            the block x coordinate
+ * @param y
+ *            the block y coordinate
+ * @param z
+ *            the block z coordinate
+ * @param shopTypeId
+ *            the shop type id
+ * @param shopTypeName
+ *            the shop type display name
+ * @param shopObjectTypeName
+ *            the shop object type display name
+ * @param name
+ *            the shopkeeper display name, without color codes
+ * @param ownerName
+ *            the owner name, or an empty string if this is not a player shopkeeper
+ * @param offersCount
+ *            the number of offers, or <code>-1</code> if not captured
+ */
+record ShopkeeperSnapshot(
+		int id,
+		UUID uniqueId,
+		@Nullable String worldName,
+		int x,
+		int y,
+		int z,
+		String shopTypeId,
+		String shopTypeName,
+		String shopObjectTypeName,
+		String name,
+		String ownerName,
+		int offersCount
+) {
+
+	/**
+	 * Captures the data of the given shopkeeper.
+	 * <p>
+	 * Has to be called on the main thread.
+	 *
+	 * @param shopkeeper
+	 *            the shopkeeper
+	 * @param settings
+	 *            the settings, used to only capture the expensive data that is actually used
+	 * @param strings
+	 *            caches the captured strings
+	 * @return the snapshot
+	 */
+	static ShopkeeperSnapshot capture(
+			Shopkeeper shopkeeper,
+			Settings settings,
+			ShopkeeperStrings strings
+	) {
+		var ownerName = "";
+		if (shopkeeper instanceof PlayerShopkeeper playerShopkeeper) {
+			ownerName = strings.getOwnerName(playerShopkeeper);
+		}
+
+		// Only captured if any template or map rule uses it:
+		var offersCount = -1;
+		if (settings.isOffersCountRequired()) {
+			offersCount = getOffersCount(shopkeeper);
+		}
+
+		var shopType = shopkeeper.getType();
+		return new ShopkeeperSnapshot(
+				shopkeeper.getId(),
+				shopkeeper.getUniqueId(),
+				shopkeeper.getWorldName(),
+				shopkeeper.getX(),
+				shopkeeper.getY(),
+				shopkeeper.getZ(),
+				shopType.getIdentifier(),
+				shopType.getDisplayName(),
+				shopkeeper.getShopObject().getType().getDisplayName(),
+				strings.getStrippedDisplayName(shopkeeper),
+				ownerName,
+				offersCount
+		);
+	}
+
+	private static int getOffersCount(Shopkeeper shopkeeper) {
+		// The trading recipes of regular admin shops correspond one-to-one to their offers. Counting
+		// the offers avoids building the trading recipes, which is comparatively expensive.
+		if (shopkeeper instanceof RegularAdminShopkeeper regularAdminShopkeeper) {
+			return regularAdminShopkeeper.getOffers().size();
+		}
+
+		// The trading recipes of player shops depend on the shop's stock:
+		return shopkeeper.getTradingRecipes(null).size();
+	}
+
+	/**
+	 * Creates a copy of this snapshot with the given shopkeeper id.
+	 * <p>
+	 * Used to assign local ids to the shopkeepers that are imported from other servers.
+	 *
+	 * @param id
+	 *            the shopkeeper id
+	 * @return the snapshot with the given id
+	 */
+	ShopkeeperSnapshot withId(int id) {
+		if (id == this.id) {
+			return this;
+		}
+		return new ShopkeeperSnapshot(
+				id,
+				uniqueId,
+				worldName,
+				x,
+				y,
+				z,
+				shopTypeId,
+				shopTypeName,
+				shopObjectTypeName,
+				name,
+				ownerName,
+				offersCount
+		);
+	}
+
+	/**
+	 * Checks if the given snapshot differs from this snapshot at most in its location, i.e. in the
+	 * world and the coordinates.
+	 * <p>
+	 * The rendered marker texts do not depend on the location. If only the location changed, the
+	 * marker only needs to be moved.
+	 *
+	 * @param other
+	 *            the other snapshot
+	 * @return <code>true</code> if the snapshots are equal, ignoring their location
+	 */
+	boolean equalsIgnoringLocation(ShopkeeperSnapshot other) {
+		return id == other.id
+				&& uniqueId.equals(other.uniqueId)
+				&& shopTypeId.equals(other.shopTypeId)
+				&& shopTypeName.equals(other.shopTypeName)
+				&& shopObjectTypeName.equals(other.shopObjectTypeName)
+				&& name.equals(other.name)
+				&& ownerName.equals(other.ownerName)
+				&& offersCount == other.offersCount;
+	}
+
+	/**
+	 * Calculates a fingerprint of this snapshot that is stable across server restarts.
+	 *
+	 * @return the fingerprint
+	 */
+	long fingerprint() {
+		return new Fingerprint()
+				.add(id)
+				.add(uniqueId.getMostSignificantBits())
+				.add(uniqueId.getLeastSignificantBits())
+				.add(worldName)
+				.add(x)
+				.add(y)
+				.add(z)
+				.add(shopTypeId)
+				.add(shopTypeName)
+				.add(shopObjectTypeName)
+				.add(name)
+				.add(ownerName)
+				.add(offersCount)
+				.get();
+	}
+
+	/**
+	 * Gets the prefix for log messages related to this shopkeeper.
+	 *
+	 * @return the log prefix
+	 */
+	String getLogPrefix() {
+		return "Shopkeeper " + id + ": ";
+	}
+}
@@ -0,0 +1,117 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.ChatColor;
+
+import com.nisovin.shopkeepers.api.shopkeeper.Shopkeeper;
+import com.nisovin.shopkeepers.api.shopkeeper.player.PlayerShopkeeper;
+
+/**
+ * Caches the strings that we capture for the shopkeepers.
+ * <p>
+ * Stripping the color codes from the shopkeeper names uses a regular expression. We therefore
+ * remember the stripped name of each shopkeeper, and only strip the name again if it changed. The
+ * owner names are shared by all snapshots of the shops of the same owner, instead of keeping a
+ * separate copy for each shop.
+ * <p>
+ * Both caches are bounded and evict their least recently used entries. Not thread-safe: Only used
+ * on the main thread.
+ */
+final class ShopkeeperStrings {
+
+	private static final int MAX_DISPLAY_NAMES = 16384;
+	private static final int MAX_OWNER_NAMES = 4096;
+
+	/**
+	 * The stripped display name of a shopkeeper.
+	 *
+	 * @param displayName
+	 *            the display name, with color codes
+	 * @param strippedDisplayName
+	 *            the display name, without color codes
+	 */
+	private record DisplayName(String displayName, String strippedDisplayName) {
+	}
+
+	// Shopkeeper id -> display name
+	private final Map<Integer, DisplayName> displayNames = new LruMap<>(MAX_DISPLAY_NAMES);
+	// Owner unique id -> owner name
+	private final Map<UUID, String> ownerNames = new LruMap<>(MAX_OWNER_NAMES);
+
+	private static final class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int maxSize;
+
+		LruMap(int maxSize) {
+			super(16, 0.75F, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return this.size() > maxSize;
+		}
+	}
+
+	/**
+	 * Gets the display name of the given shopkeeper, without color codes.
+	 *
+	 * @param shopkeeper
+	 *            the shopkeeper
+	 * @return the stripped display name
+	 */
+	String getStrippedDisplayName(Shopkeeper shopkeeper) {
+		var displayName = shopkeeper.getDisplayName();
+		var cached = displayNames.get(shopkeeper.getId());
+		if (cached != null && cached.displayName().equals(displayName)) {
+			return cached.strippedDisplayName();
+		}
+
+		var strippedDisplayName = ChatColor.stripColor(displayName);
+		displayNames.put(shopkeeper.getId(), new DisplayName(displayName, strippedDisplayName));
+		return strippedDisplayName;
+	}
+
+	/**
+	 * Gets the owner name of the given player shopkeeper.
+	 *
+	 * @param shopkeeper
+	 *            the player shopkeeper
+	 * @return the owner name, shared with the other shops of the same owner
+	 */
+	String getOwnerName(PlayerShopkeeper shopkeeper) {
+		var ownerName = shopkeeper.getOwnerName();
+		var cached = ownerNames.get(shopkeeper.getOwnerUUID());
+		if (cached != null && cached.equals(ownerName)) {
+			return cached;
+		}
+
+		// The owner name changed, or is not cached yet:
+		ownerNames.put(shopkeeper.getOwnerUUID(), ownerName);
+		return ownerName;
+	}
+
+	/**
+	 * Evicts the cached strings of the specified shopkeeper, e.g. when the shopkeeper was edited or
+	 * removed.
+	 *
+	 * @param shopkeeperId
+	 *            the shopkeeper id
+	 */
+	void evict(int shopkeeperId) {
+		displayNames.remove(shopkeeperId);
+	}
+
+	/**
+	 * Clears all cached strings.
+	 */
+	void clear() {
+		displayNames.clear();
+		ownerNames.clear();
+	}
+}
@@ -1,68 +1,100 @@
 package de.blablubbabc.shopkeepers.bluemap;
 
-import java.io.IOException;
-import java.nio.file.Files;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
-import org.bukkit.ChatColor;
 import org.bukkit.event.HandlerList;
+import org.bukkit.scheduler.BukkitTask;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import com.nisovin.shopkeepers.api.ShopkeepersAPI;
 import com.nisovin.shopkeepers.api.shopkeeper.Shopkeeper;
-import com.nisovin.shopkeepers.api.shopkeeper.player.PlayerShopkeeper;
 
+import de.blablubbabc.shopkeepers.bluemap.MarkerMetrics.Operation;
 import de.blablubbabc.shopkeepers.bluemap.util.SchedulerUtils;
 
 import de.bluecolored.bluemap.api.BlueMapAPI;
-import de.bluecolored.bluemap.api.BlueMapMap;
-import de.bluecolored.bluemap.api.BlueMapWorld;
-import de.bluecolored.bluemap.api.markers.MarkerSet;
-import de.bluecolored.bluemap.api.markers.POIMarker;
 
 /**
  * Shopkeepers BlueMap integration.
  */
 public class ShopkeepersBlueMap {
 
-	private static final String WEB_SHOPKEEPERS_ASSETS = "assets/shopkeepers";
-	private static final String JAR_ASSETS = "assets";
-	private static final String[] ASSETS = new String[] {
-			"admin16.png",
-			"admin24.png",
-			"admin32.png",
-			"book16.png",
-			"book24.png",
-			"book32.png",
-			"buy16.png",
-			"buy24.png",
-			"buy32.png",
-			"sell16.png",
-			"sell24.png",
-			"sell32.png",
-			"trade16.png",
-			"trade24.png",
-			"trade32.png"
-	};
-
-	private static final String MARKERSET_ID = "shopkeepers.markerset";
+	private static final String MARKER_CACHE_FILE = "markers.cache";
+
+	// The maximum time to wait for the marker cleanup when the BlueMap API is disabled:
+	private static final long DISABLE_TIMEOUT_MILLIS = 5000L;
 
 	private final ShopkeepersBlueMapPlugin plugin;
 	private final ShopkeepersListener shopkeeperListener = new ShopkeepersListener(this);
+	private final MarkerUpdateQueue markerUpdateQueue;
+	private final WebAssets webAssets;
+	private final MarkerMetrics metrics = new MarkerMetrics();
+	// Only used on the main thread:
+	private final ShopkeeperStrings shopkeeperStrings = new ShopkeeperStrings();
 
-	// Fair reentrant lock to ensure consistent ordering of enable and disable callbacks:
-	private final ReentrantLock blueMapLock = new ReentrantLock(true);
-	// Do not access this except while holding the blueMapLock (see runWithBlueMapLock and
-	// runBlueMapOperation):
-	private BlueMapAPI blueMapApi = null;
+	/**
+	 * The currently enabled BlueMap API.
+	 * 
+	 * @param blueMapApi
+	 *            the BlueMap API, or <code>null</code> if currently disabled
+	 * @param markerManager
+	 *            the marker manager for the BlueMap API, or <code>null</code> if currently
+	 *            disabled
+	 * @param generation
+	 *            incremented whenever the BlueMap API is enabled or disabled
+	 */
+	private record BlueMapState(
+			@Nullable BlueMapAPI blueMapApi,
+			@Nullable MarkerManager markerManager,
+			long generation
+	) {
+	}
+
+	// Swapped atomically whenever the BlueMap API is enabled or disabled. Marker operations that
+	// were submitted for a previous generation are skipped.
+	private final AtomicReference<BlueMapState> blueMapState = new AtomicReference<>(
+			new BlueMapState(null, null, 0L)
+	);
+	// We need to unregister the same listener instances that we registered:
+	private final Consumer<BlueMapAPI> blueMapEnableListener = this::onBlueMapEnabledAsync;
+	private final Consumer<BlueMapAPI> blueMapDisableListener = this::onBlueMapDisabledAsync;
 
 	private boolean enabled = false;
 	private boolean assetsWritten = false;
+	// Null if the integration is disabled:
+	private volatile @Nullable MarkerCache markerCache = null;
+	// Creates and writes the markers off the main thread. This is the only thread that modifies
+	// our markers. Since there is only a single thread, the marker operations are run in the order
+	// in which they are submitted. This preserves the order of the updates of each shopkeeper.
+	private volatile ExecutorService markerExecutor = null;
+	private volatile MarkerPopulation markerPopulation = null;
+	private @Nullable BukkitTask statsLogTask = null;
+	// Receive our rendered markers, e.g. for the shared marker store or statically hosted maps.
+	// Only used on the marker thread.
+	private volatile List<MarkerExporter> markerExporters = List.of();
+	private @Nullable BukkitTask sharedMarkerImportTask = null;
+	private @Nullable BukkitTask staticMarkerExportTask = null;
+	// Null if the change feed is disabled. Only used on the marker thread.
+	private volatile @Nullable MarkerChangeFeed markerChangeFeed = null;
+	private @Nullable BukkitTask markerChangeFeedTask = null;
 
 	public ShopkeepersBlueMap(ShopkeepersBlueMapPlugin plugin) {
 		this.plugin = plugin;
+		this.markerUpdateQueue = new MarkerUpdateQueue(plugin, this);
+		this.webAssets = new WebAssets(plugin);
 	}
 
 	/**
@@ -83,11 +115,39 @@ public class ShopkeepersBlueMap {
 		// Try to write the assets again after each reload:
 		assetsWritten = false;
 
+		markerExecutor = Executors.newSingleThreadExecutor(runnable -> {
+			var thread = new Thread(runnable, plugin.getName() + " Marker Thread");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		markerCache = new MarkerCache(
+				plugin.getLogger(),
+				plugin.getDataFolder().toPath().resolve(MARKER_CACHE_FILE)
+		);
+
+		var markerExporters = new ArrayList<MarkerExporter>();
+		var sharedMarkerExporter = this.setupSharedMarkerStore();
+		if (sharedMarkerExporter != null) {
+			markerExporters.add(sharedMarkerExporter);
+		}
+		var staticMarkerExporter = this.setupStaticMarkerExporter();
+		if (staticMarkerExporter != null) {
+			markerExporters.add(staticMarkerExporter);
+		}
+		var markerChangeFeed = this.setupMarkerChangeFeed();
+		if (markerChangeFeed != null) {
+			markerExporters.add(markerChangeFeed);
+		}
+		this.markerExporters = List.copyOf(markerExporters);
+
 		// Called immediately if the BlueMap API is currently enabled:
-		BlueMapAPI.onEnable(this::onBlueMapEnabledAsync);
-		BlueMapAPI.onDisable(this::onBlueMapDisabledAsync);
+		BlueMapAPI.onEnable(blueMapEnableListener);
+		BlueMapAPI.onDisable(blueMapDisableListener);
 
 		Bukkit.getPluginManager().registerEvents(shopkeeperListener, plugin);
+
+		this.startStatsLogTask();
 	}
 
 	/**
@@ -100,81 +160,294 @@ public class ShopkeepersBlueMap {
 			return;
 		}
 
+		this.stopStatsLogTask();
+		this.stopSharedMarkerImportTask();
+		this.stopStaticMarkerExportTask();
+		this.stopMarkerChangeFeedTask();
+
 		HandlerList.unregisterAll(shopkeeperListener);
+		markerUpdateQueue.clear();
+		shopkeeperStrings.clear();
 
-		BlueMapAPI.unregisterListener(this::onBlueMapEnabledAsync);
-		BlueMapAPI.unregisterListener(this::onBlueMapDisabledAsync);
+		BlueMapAPI.unregisterListener(blueMapEnableListener);
+		BlueMapAPI.unregisterListener(blueMapDisableListener);
 
-		this.onBlueMapDisabledAsync();
+		// Remove all markers:
+		this.onBlueMapDisabledAsync(null);
+
+		// Any remaining marker operations are skipped, since the BlueMap API is now disabled:
+		var markerExecutor = this.markerExecutor;
+		this.markerExecutor = null;
+		markerExecutor.shutdown();
+		try {
+			if (!markerExecutor.awaitTermination(DISABLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				plugin.getLogger().warning("Timed out while waiting for the marker thread to stop!");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 
+		markerCache = null;
+		markerExporters = List.of();
+		markerChangeFeed = null;
 		enabled = false;
 	}
 
+	// Called on the main thread during enable. Returns the exporter, or null if we don't export
+	// our markers to the shared marker store.
+	private @Nullable SharedMarkerExporter setupSharedMarkerStore() {
+		var sharedStoreSettings = plugin.getSettings().getSharedStoreSettings();
+		if (sharedStoreSettings == null) {
+			return null;
+		}
+
+		var store = new SharedMarkerStore(
+				plugin.getDataFolder().toPath().resolve(sharedStoreSettings.directory())
+		);
+		switch (sharedStoreSettings.mode()) {
+			case EXPORT -> {
+				var serverId = sharedStoreSettings.serverId();
+				if (!SharedMarkerStore.isValidServerId(serverId)) {
+					plugin.getLogger().warning("Not exporting the markers to the shared marker"
+							+ " store: Invalid server id: '" + serverId + "'");
+					return null;
+				}
+
+				var exporter = new SharedMarkerExporter(plugin.getLogger(), store, serverId);
+				this.submitMarkerTask(exporter::load);
+				return exporter;
+			}
+			case IMPORT -> {
+				var importer = new SharedMarkerImporter(plugin.getLogger(), store);
+				var intervalTicks = sharedStoreSettings.importIntervalSeconds() * 20L;
+				sharedMarkerImportTask = SchedulerUtils.runTaskTimerOrOmit(
+						plugin,
+						() -> this.submitMarkerOperation(Operation.OTHER, importer::poll),
+						intervalTicks,
+						intervalTicks
+				);
+			}
+		}
+		return null;
+	}
+
+	// Called on the main thread during enable. Returns null if the static export is disabled.
+	private @Nullable StaticMarkerExporter setupStaticMarkerExporter() {
+		var staticExportSettings = plugin.getSettings().getStaticExportSettings();
+		if (staticExportSettings == null) {
+			return null;
+		}
+
+		var staticMarkerExporter = new StaticMarkerExporter(
+				plugin.getLogger(),
+				plugin::getSettings,
+				plugin.getDataFolder().toPath().resolve(staticExportSettings.webRoot()),
+				staticExportSettings.writeIntervalMillis(),
+				staticExportSettings.maps()
+		);
+		staticMarkerExportTask = this.startExporterFlushTask(
+				staticMarkerExporter,
+				staticExportSettings.writeIntervalMillis()
+		);
+		return staticMarkerExporter;
+	}
+
+	// Called on the main thread during enable. Returns null if the change feed is disabled.
+	private @Nullable MarkerChangeFeed setupMarkerChangeFeed() {
+		var changeFeedSettings = plugin.getSettings().getChangeFeedSettings();
+		if (changeFeedSettings == null) {
+			return null;
+		}
+
+		var markerChangeFeed = new MarkerChangeFeed(
+				plugin.getLogger(),
+				changeFeedSettings.writeIntervalMillis(),
+				changeFeedSettings.maxChangesPerFile(),
+				plugin::getSettings
+		);
+		this.markerChangeFeed = markerChangeFeed;
+
+		markerChangeFeedTask = this.startExporterFlushTask(
+				markerChangeFeed,
+				changeFeedSettings.writeIntervalMillis()
+		);
+		return markerChangeFeed;
+	}
+
+	// The exporter is flushed after each marker operation, but only writes at most once per write
+	// interval. Periodically flush the changes that were held back:
+	private @Nullable BukkitTask startExporterFlushTask(
+			MarkerExporter exporter,
+			int writeIntervalMillis
+	) {
+		var intervalTicks = Math.max(1L, (writeIntervalMillis + 49L) / 50L);
+		return SchedulerUtils.runTaskTimerOrOmit(
+				plugin,
+				() -> this.submitMarkerTask(exporter::flush),
+				intervalTicks,
+				intervalTicks
+		);
+	}
+
+	private void stopMarkerChangeFeedTask() {
+		if (markerChangeFeedTask == null) {
+			return;
+		}
+
+		markerChangeFeedTask.cancel();
+		markerChangeFeedTask = null;
+	}
+
+	private void stopStaticMarkerExportTask() {
+		if (staticMarkerExportTask == null) {
+			return;
+		}
+
+		staticMarkerExportTask.cancel();
+		staticMarkerExportTask = null;
+	}
+
+	private void stopSharedMarkerImportTask() {
+		if (sharedMarkerImportTask == null) {
+			return;
+		}
+
+		sharedMarkerImportTask.cancel();
+		sharedMarkerImportTask = null;
+	}
+
+	// Checks if the given BlueMap API generation is still the current one.
+	boolean isCurrentBlueMapGeneration(long generation) {
+		return blueMapState.get().generation() == generation;
+	}
+
 	/**
-	 * Synchronizes access to {@link ShopkeepersBlueMap#blueMapApi} to only allow one operation at a
-	 * time.
-	 * <p>
-	 * This is used to resolve race conditions. For example, when the BlueMap API is disabled off
-	 * the main thread, we wait for any in-progress marker updates on the main thread to complete
-	 * before we cleanup all markers. Otherwise, we could end up cleaning up the markers off the
-	 * main thread just for new markers to be subsequently added on the main thread.
-	 * <p>
-	 * The operations are run in FIFO order.
+	 * Submits a task to be run on the marker thread.
 	 * 
-	 * @param operation
-	 *            the operation to run inside the BlueMap lock
+	 * @param task
+	 *            the task
+	 * @return <code>true</code> if the task was submitted, <code>false</code> if the integration is
+	 *         disabled
 	 */
-	private void runWithBlueMapLock(Runnable operation) {
-		blueMapLock.lock();
+	private boolean submitMarkerTask(Runnable task) {
+		var markerExecutor = this.markerExecutor;
+		if (markerExecutor == null) {
+			return false;
+		}
+
 		try {
-			operation.run();
-		} finally {
-			blueMapLock.unlock();
+			markerExecutor.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			// The integration is being disabled.
+			return false;
 		}
 	}
 
 	/**
-	 * See {@link #runWithBlueMapLock(Runnable)}.
+	 * Submits a marker operation to be run on the marker thread.
+	 * <p>
+	 * The operations are run one after the other, in the order in which they are submitted. Do not
+	 * access the Shopkeepers API inside the operation.
 	 * <p>
-	 * The operation is skipped if the BlueMap API is not available currently.
+	 * The operation is skipped if the BlueMap API is not available currently, or if it is disabled
+	 * or re-enabled before the operation is run. This never blocks.
 	 * 
+	 * @param operationType
+	 *            the type of the operation, for the metrics
 	 * @param operation
-	 *            the BlueMap operation to run
+	 *            the marker operation to run
 	 */
-	private void runBlueMapOperation(Consumer<BlueMapAPI> operation) {
-		this.runWithBlueMapLock(() -> {
-			var blueMapApi = this.blueMapApi;
-			if (blueMapApi == null) {
+	void submitMarkerOperation(Operation operationType, Consumer<MarkerManager> operation) {
+		var state = blueMapState.get();
+		var markerManager = state.markerManager();
+		if (markerManager == null) {
+			return;
+		}
+
+		var submitNanos = System.nanoTime();
+		metrics.onOperationSubmitted();
+		var submitted = this.submitMarkerTask(() -> {
+			// Skip if the BlueMap API has been disabled in the meantime:
+			if (!this.isCurrentBlueMapGeneration(state.generation())) {
+				metrics.onOperationSkipped();
 				return;
 			}
 
-			operation.accept(blueMapApi);
+			var startNanos = System.nanoTime();
+			try {
+				operation.accept(markerManager);
+				markerManager.publishChanges();
+
+				// Export the changed markers at once after each operation:
+				this.markerExporters.forEach(MarkerExporter::flush);
+			} catch (Exception e) {
+				plugin.getLogger().log(Level.SEVERE, "Failed to update BlueMap markers!", e);
+			}
+			metrics.recordOperation(
+					operationType,
+					startNanos - submitNanos,
+					System.nanoTime() - startNanos
+			);
 		});
+		if (!submitted) {
+			metrics.onOperationSkipped();
+		}
 	}
 
 	// According to the documentation, this may be called off the main server thread!
 	private void onBlueMapEnabledAsync(BlueMapAPI blueMapApi) {
 		SchedulerUtils.runOnMainThreadOrOmit(plugin, () -> {
-			this.runWithBlueMapLock(() -> {
-				// Only enable if the BlueMap API is still enabled:
-				BlueMapAPI.getInstance().ifPresent(this::onBlueMapEnabled);
-			});
+			// Only enable if the BlueMap API is still enabled:
+			BlueMapAPI.getInstance().ifPresent(this::onBlueMapEnabled);
 		});
 	}
 
 	// According to the documentation, this may be called off the main server thread!
-	private void onBlueMapDisabledAsync(BlueMapAPI _unused) {
+	// Also called on the main thread when the integration is disabled.
+	private void onBlueMapDisabledAsync(@Nullable BlueMapAPI _unused) {
 		// Note: BlueMapAPI.getInstance is already null at this point.
-		// Note: We handle the cleanup immediately, potentially off the main thread, because it is
-		// not guaranteed that the API can still be used after this method returns (e.g. after
-		// synchronization to the main thread).
-		// This intentionally blocks while waiting for other BlueMap operations to complete.
-		this.runWithBlueMapLock(() -> {
-			this.onBlueMapDisabledAsync();
+		var previousState = blueMapState.getAndUpdate(state -> {
+			return new BlueMapState(null, null, state.generation() + 1);
 		});
+		var markerManager = previousState.markerManager();
+		if (markerManager == null) {
+			return; // Already disabled
+		}
+
+		this.cancelMarkerPopulation();
+
+		// Note: We handle the cleanup immediately, because it is not guaranteed that the API can
+		// still be used after this method returns. To not interfere with a marker operation that
+		// might currently be in progress, we run the cleanup on the marker thread. Any other
+		// pending marker operations are skipped, since they belong to the previous generation.
+		// We only wait for a limited amount of time for the cleanup to complete.
+		var markerCache = this.markerCache;
+		var cleanupTask = new FutureTask<Void>(() -> {
+			// Do not access the ShopkeepersAPI here.
+			if (markerCache != null && plugin.getSettings().isMarkerCacheEnabled()) {
+				markerCache.save(markerManager.getCacheEntries());
+			}
+			markerManager.removeAllShopkeepers();
+		}, null);
+		if (!this.submitMarkerTask(cleanupTask)) {
+			// The marker thread is no longer running:
+			cleanupTask.run();
+		}
+
+		try {
+			cleanupTask.get(DISABLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			plugin.getLogger().warning("Timed out while waiting for the BlueMap markers to be"
+					+ " removed!");
+		} catch (ExecutionException e) {
+			plugin.getLogger().log(Level.SEVERE, "Failed to remove the BlueMap markers!", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
-	// Called on the main thread inside the BlueMap lock.
+	// Called on the main thread.
 	private void onBlueMapEnabled(BlueMapAPI newBlueMapApi) {
 		if (!enabled) {
 			return;
@@ -182,14 +455,49 @@ public class ShopkeepersBlueMap {
 		// This is called on the main thread and we disable the integration during plugin disable:
 		assert plugin.isEnabled();
 
-		if (this.blueMapApi != null) {
+		var currentState = blueMapState.get();
+		if (currentState.blueMapApi() != null) {
 			// Already enabled.
-			// Unexpected, because API enable and disable callbacks are run in FIFO order and
-			// disable blocks while waiting for the lock.
 			return;
 		}
 
-		this.blueMapApi = newBlueMapApi;
+		var markerManager = new MarkerManager(
+				plugin.getLogger(),
+				plugin::getSettings,
+				MarkerMaps.of(newBlueMapApi),
+				metrics,
+				markerExporters
+		);
+		var newState = new BlueMapState(
+				newBlueMapApi,
+				markerManager,
+				currentState.generation() + 1
+		);
+		if (!blueMapState.compareAndSet(currentState, newState)) {
+			// Concurrently disabled in the meantime.
+			return;
+		}
+
+		var markerChangeFeed = this.markerChangeFeed;
+		if (markerChangeFeed != null) {
+			var webRoot = newBlueMapApi.getWebApp().getWebRoot();
+			this.submitMarkerOperation(Operation.OTHER, manager -> {
+				markerChangeFeed.setWebRoot(webRoot);
+			});
+		}
+
+		// Restore the cached markers right away. They are reconciled with the current shopkeepers
+		// when the markers for all shopkeepers are added. If the Shopkeepers API is not enabled,
+		// the markers for all shopkeepers are not added, and the restored markers would never be
+		// reconciled.
+		var markerCache = this.markerCache;
+		if (markerCache != null && plugin.getSettings().isMarkerCacheEnabled()
+				&& ShopkeepersAPI.isEnabled()) {
+			this.submitMarkerOperation(
+					Operation.RESTORE,
+					manager -> manager.restoreShopkeepers(markerCache.load())
+			);
+		}
 
 		if (!assetsWritten) {
 			assetsWritten = true;
@@ -197,263 +505,315 @@ public class ShopkeepersBlueMap {
 			// Write the assets asynchronously and add the shopkeeper markers afterwards (on the
 			// main thread):
 			SchedulerUtils.runAsyncTaskOrOmit(plugin, () -> {
-				this.runBlueMapOperation(blueMapApi -> {
-					this.writeAssets(blueMapApi);
-				});
+				if (!this.isCurrentBlueMapGeneration(newState.generation())) {
+					return;
+				}
+
+				this.writeAssets(newBlueMapApi);
 
 				SchedulerUtils.runOnMainThreadOrOmit(plugin, () -> {
-					this.runBlueMapOperation(blueMapApi -> {
-						this.addAllShopkeepers(blueMapApi);
-					});
+					this.addAllShopkeepers(newState);
 				});
 			});
 			return;
 		}
 
-		this.addAllShopkeepers(newBlueMapApi);
-	}
-
-	// Potentially called off the main thread, while holding the BlueMap lock.
-	private void onBlueMapDisabledAsync() {
-		var blueMapApi = this.blueMapApi;
-		if (blueMapApi == null) {
-			return; // Already disabled
-		}
-		// blueMapApi is only assigned when the integration is enabled:
-		assert enabled;
-
-		this.removeAllShopkeepersAsync(blueMapApi);
-
-		this.blueMapApi = null;
+		this.addAllShopkeepers(newState);
 	}
 
 	// Potentially called off the main thread.
 	private void writeAssets(BlueMapAPI blueMapApi) {
-		plugin.getLogger().info("Writing web assets.");
+		webAssets.write(blueMapApi.getWebApp().getWebRoot());
+	}
 
-		// The marker icons are the same across all worlds and maps. We therefore save them to the
-		// app's base assets directory.
-		var shopkeeperAssetsPath = blueMapApi.getWebApp().getWebRoot()
-				.resolve(WEB_SHOPKEEPERS_ASSETS);
-		try {
-			Files.createDirectories(shopkeeperAssetsPath);
-		} catch (IOException e) {
-			plugin.getLogger().log(
-					Level.SEVERE,
-					"Failed to create assets directory: " + shopkeeperAssetsPath,
-					e
+	// Called on the main thread.
+	private void addAllShopkeepers(BlueMapState state) {
+		// Skip if the BlueMap API has been disabled in the meantime:
+		if (!this.isCurrentBlueMapGeneration(state.generation())) {
+			return;
+		}
+
+		// Note: If the Shopkeepers API is later enabled, the shopkeepers will be added one-by-one
+		// via the ShopkeeperAddedEvent.
+		if (!ShopkeepersAPI.isEnabled()) {
+			// Remove any markers that were restored from the marker cache, since they are not
+			// reconciled:
+			this.submitMarkerOperation(
+					Operation.OTHER,
+					MarkerManager::removeUnreconciledShopkeepers
 			);
+			return;
 		}
 
-		for (var asset : ASSETS) {
-			var targetPath = shopkeeperAssetsPath.resolve(asset);
+		// If there are no markers yet (e.g. none were restored from the marker cache), the markers
+		// can be staged and then published at once when all shopkeepers have been added. Has no
+		// effect if a previous population already started the rebuild.
+		if (plugin.getSettings().isAtomicRebuild()) {
+			this.submitMarkerOperation(Operation.OTHER, MarkerManager::beginRebuild);
+		}
 
-			// Note: We don't replace existing assets, since the user might have replaced them
-			// with their own assets.
-			if (Files.exists(targetPath)) {
-				continue;
-			}
+		var markerExporters = this.markerExporters;
+		if (!markerExporters.isEmpty()) {
+			this.submitMarkerOperation(Operation.OTHER, markerManager -> {
+				markerExporters.forEach(MarkerExporter::beginResync);
+			});
+		}
 
-			var sourcePath = JAR_ASSETS + "/" + asset;
-			var inputStream = plugin.getResource(sourcePath);
+		// Once all shopkeepers have been added, remove the markers restored from the marker cache
+		// and the exported markers whose shopkeepers no longer exist:
+		var allShopkeepers = ShopkeepersAPI.getShopkeeperRegistry().getAllShopkeepers();
+		this.startMarkerPopulation(state, new ArrayList<>(allShopkeepers), markerManager -> {
+			markerManager.removeUnreconciledShopkeepers();
+			markerExporters.forEach(MarkerExporter::endResync);
+			markerManager.commitRebuild();
+		});
+	}
 
-			try {
-				Files.copy(inputStream, targetPath);
-			} catch (IOException e) {
-				plugin.getLogger().log(
-						Level.SEVERE,
-						"Failed to write asset (aborting): " + targetPath,
-						e
-				);
-				break;
-			}
+	// Called on the main thread.
+	private void startMarkerPopulation(
+			BlueMapState state,
+			List<? extends Shopkeeper> shopkeepers,
+			@Nullable Consumer<MarkerManager> completionOperation
+	) {
+		this.cancelMarkerPopulation();
+
+		// If the markers are added across multiple ticks, add the markers of the shopkeepers that
+		// players are most likely to look at first. The shopkeepers are ordered as part of the
+		// population, within its time budget.
+		var settings = plugin.getSettings();
+		var populationPriority = settings.getPopulationPriority();
+		PopulationOrder populationOrder = null;
+		if (populationPriority != null && settings.getPopulationTimeBudgetMillis() > 0) {
+			populationOrder = new PopulationOrder(shopkeepers, populationPriority);
 		}
-	}
 
-	private MarkerSet getOrCreateMarkerSet(BlueMapMap map) {
-		return map.getMarkerSets().computeIfAbsent(
-				MARKERSET_ID,
-				key -> MarkerSet.builder()
-						.label(plugin.getSettings().getMarkerSetName())
-						.defaultHidden(false)
-						.toggleable(true)
-						.build()
+		// Add the markers in batches, spread across multiple ticks (unless the time budget is
+		// disabled). The given list is a snapshot of the shopkeepers, since the registry might
+		// change in the meantime. Shopkeepers that are added in the meantime are handled via the
+		// ShopkeeperAddedEvent.
+		var markerPopulation = new MarkerPopulation(
+				plugin,
+				this,
+				state.generation(),
+				shopkeepers,
+				populationOrder,
+				completionOperation
 		);
+		this.markerPopulation = markerPopulation;
+		markerPopulation.start();
 	}
 
-	private MarkerSet getMarkerSet(BlueMapMap map) {
-		return map.getMarkerSets().get(MARKERSET_ID);
-	}
+	/**
+	 * Applies the changes between the given previous and new settings to the existing markers.
+	 * <p>
+	 * Instead of removing and re-adding all markers, we only update the markers of the shop types
+	 * whose marker settings changed. The markers of the other shop types remain untouched. Called
+	 * on the main thread after the settings have been reloaded.
+	 * 
+	 * @param previousSettings
+	 *            the previous settings
+	 * @param settings
+	 *            the new settings
+	 */
+	void onSettingsReloaded(Settings previousSettings, Settings settings) {
+		if (!enabled) {
+			return;
+		}
 
-	private MarkerSet removeMarkerSet(BlueMapMap map) {
-		return map.getMarkerSets().remove(MARKERSET_ID);
-	}
+		if (previousSettings.getStatsLogIntervalSeconds() != settings.getStatsLogIntervalSeconds()) {
+			this.stopStatsLogTask();
+			this.startStatsLogTask();
+		}
 
-	private void addAllShopkeepers(BlueMapAPI blueMapApi) {
-		// Note: If the Shopkeepers API is later enabled, the shopkeepers will be added one-by-one
-		// via the ShopkeeperAddedEvent.
-		if (!ShopkeepersAPI.isEnabled()) {
+		var state = blueMapState.get();
+		var blueMapApi = state.blueMapApi();
+		if (blueMapApi == null) {
+			// The markers are created with the new settings once BlueMap is enabled.
 			return;
 		}
 
-		var allShopkeepers = ShopkeepersAPI.getShopkeeperRegistry().getAllShopkeepers();
-		allShopkeepers.forEach(shopkeeper -> this.addShopkeeper(blueMapApi, shopkeeper));
-		plugin.getLogger().info("Added BlueMap markers for all shopkeepers: "
-				+ allShopkeepers.size());
-	}
-
-	// Potentially called off the main thread. Do not access the ShopkeepersAPI here.
-	private void removeAllShopkeepersAsync(BlueMapAPI blueMapApi) {
-		// Remove the shopkeepers marker set from all maps:
-		var markerCount = 0;
-		for (var world : blueMapApi.getWorlds()) {
-			for (BlueMapMap map : world.getMaps()) {
-				var markerSet = this.removeMarkerSet(map);
-				if (markerSet != null) {
-					markerCount += markerSet.getMarkers().size();
-				}
+		// Try to write any missing assets again:
+		SchedulerUtils.runAsyncTaskOrOmit(plugin, () -> {
+			if (!this.isCurrentBlueMapGeneration(state.generation())) {
+				return;
 			}
-		}
-
-		plugin.getLogger().info("Removed " + markerCount + " BlueMap markers for all shopkeepers.");
-	}
 
-	void addShopkeeper(Shopkeeper shopkeeper) {
-		this.runBlueMapOperation(blueMapApi -> {
-			this.addShopkeeper(blueMapApi, shopkeeper);
+			this.writeAssets(blueMapApi);
 		});
-	}
 
-	private void addShopkeeper(BlueMapAPI blueMapApi, Shopkeeper shopkeeper) {
-		assert blueMapApi != null;
-		assert shopkeeper != null;
+		if (settings.isMarkerSetsChanged(previousSettings)) {
+			this.submitMarkerOperation(Operation.OTHER, MarkerManager::updateMarkerSets);
+		}
 
-		var worldName = shopkeeper.getWorldName();
-		if (worldName == null) {
-			// E.g. the case for virtual shopkeepers.
-			plugin.debug(shopkeeper.getLogPrefix()
-					+ "Not adding BlueMap markers for virtual shopkeeper.");
+		var changedShopTypes = settings.getChangedMarkerShopTypes(previousSettings);
+		if (changedShopTypes.isEmpty()) {
+			plugin.debug("Reload: The shopkeeper markers are unchanged.");
 			return;
 		}
 
-		var shopTypeId = shopkeeper.getType().getIdentifier();
-		var markerIcon = plugin.getSettings().getMarkerIcon(shopTypeId);
-		if (markerIcon == null || markerIcon.isBlank()) {
-			// Skip if no marker icon is defined:
-			plugin.debug(shopkeeper.getLogPrefix()
-					+ "Not adding BlueMap markers: No icon defined.");
+		if (!ShopkeepersAPI.isEnabled()) {
 			return;
 		}
 
-		blueMapApi.getWorld(worldName).map(BlueMapWorld::getMaps).ifPresent(maps -> {
-			int anchorX = plugin.getSettings().getMarkerAnchorX(shopTypeId);
-			int anchorY = plugin.getSettings().getMarkerAnchorY(shopTypeId);
-			var markerLabel = this.getMarkerLabel(shopkeeper);
-			var detail = this.getShopkeeperDetail(shopkeeper);
-
-			for (BlueMapMap map : maps) {
-				MarkerSet markerSet = this.getOrCreateMarkerSet(map);
+		var markerPopulation = this.markerPopulation;
+		if (markerPopulation != null && !markerPopulation.isCaptured()) {
+			// The initial population is still in progress: Restart it for all shopkeepers, so that
+			// the remaining shopkeepers are also added. Since unchanged markers are skipped, this
+			// only updates the markers that are affected by the changed settings.
+			this.addAllShopkeepers(state);
+			return;
+		}
 
-				POIMarker marker = POIMarker.builder()
-						.label(markerLabel)
-						.detail(detail)
-						.icon(markerIcon, anchorX, anchorY)
-						.position(
-								shopkeeper.getX() + 0.5D,
-								shopkeeper.getY() + 0.5D,
-								shopkeeper.getZ() + 0.5D
-						)
-						.build();
+		plugin.getLogger().info("Updating the BlueMap markers for the shop types: "
+				+ String.join(", ", changedShopTypes));
 
-				markerSet.getMarkers().put(this.getMarkerId(shopkeeper), marker);
+		// Shopkeepers whose shop type no longer has any markers are removed. Since the marker
+		// operations are run in order, this also updates the markers of any previous population.
+		var shopkeepers = new ArrayList<Shopkeeper>();
+		for (var shopkeeper : ShopkeepersAPI.getShopkeeperRegistry().getAllShopkeepers()) {
+			if (changedShopTypes.contains(shopkeeper.getType().getIdentifier())) {
+				shopkeepers.add(shopkeeper);
 			}
-
-			plugin.debug(shopkeeper.getLogPrefix()
-					+ "Added BlueMap markers to " + maps.size() + " maps.");
-		});
+		}
+		this.startMarkerPopulation(state, shopkeepers, null);
 	}
 
-	private String getMarkerId(Shopkeeper shopkeeper) {
-		return "shopkeeper_" + shopkeeper.getId();
+	// Potentially called off the main thread.
+	private void cancelMarkerPopulation() {
+		var markerPopulation = this.markerPopulation;
+		if (markerPopulation == null) {
+			return;
+		}
+
+		markerPopulation.cancel();
+		this.markerPopulation = null;
 	}
 
-	private String getMarkerLabel(Shopkeeper shopkeeper) {
-		var ownerName = "";
-		if (shopkeeper instanceof PlayerShopkeeper playerShopkeeper) {
-			ownerName = playerShopkeeper.getOwnerName();
-		}
+	void addShopkeeper(Shopkeeper shopkeeper) {
+		markerUpdateQueue.update(shopkeeper);
+	}
 
-		return plugin.getSettings().getMarkerLabel(shopkeeper.getType().getIdentifier())
-				.replace("{shop_id}", Integer.toString(shopkeeper.getId()))
-				.replace("{shop_uuid}", shopkeeper.getUniqueId().toString())
-				.replace("{shop_name}", ChatColor.stripColor(shopkeeper.getDisplayName()))
-				.replace("{shop_owner_name}", ownerName);
+	void removeShopkeeper(Shopkeeper shopkeeper) {
+		shopkeeperStrings.evict(shopkeeper.getId());
+		markerUpdateQueue.remove(shopkeeper);
 	}
 
-	private String getShopkeeperDetail(Shopkeeper shopkeeper) {
-		// Note: Don't include unescaped user input (e.g. the shopkeeper name) here.
+	void updateShopkeeper(Shopkeeper shopkeeper) {
+		shopkeeperStrings.evict(shopkeeper.getId());
+		markerUpdateQueue.update(shopkeeper);
+	}
 
-		var shopObjectTypeName = shopkeeper.getShopObject().getType().getDisplayName();
-		var offersCount = shopkeeper.getTradingRecipes(null).size();
+	ShopkeeperStrings getShopkeeperStrings() {
+		return shopkeeperStrings;
+	}
 
-		var ownerName = "";
-		if (shopkeeper instanceof PlayerShopkeeper playerShopkeeper) {
-			ownerName = playerShopkeeper.getOwnerName();
+	// Called on the main thread by the MarkerUpdateQueue.
+	void applyMarkerUpdates(List<MarkerUpdateQueue.PendingUpdate> updates) {
+		// Capture the shopkeeper data on the main thread, and then update the markers off the main
+		// thread:
+		var startNanos = System.nanoTime();
+		var settings = plugin.getSettings();
+		var removedShopkeeperIds = new ArrayList<Integer>();
+		var updatedShopkeepers = new ArrayList<ShopkeeperSnapshot>();
+		for (var update : updates) {
+			var shopkeeper = update.getShopkeeper();
+			// Also remove the markers of shopkeepers that have been removed in the meantime:
+			if (update.isRemove() || !shopkeeper.isValid()) {
+				removedShopkeeperIds.add(shopkeeper.getId());
+			} else {
+				updatedShopkeepers.add(ShopkeeperSnapshot.capture(
+						shopkeeper,
+						settings,
+						shopkeeperStrings
+				));
+			}
 		}
 
-		var detail = plugin.getSettings().getMarkerDetailText()
-				.replaceAll("\\r\\n|\\r|\\n", "<br>")
-				.replace("{shop_id}", Integer.toString(shopkeeper.getId()))
-				.replace("{shop_uuid}", shopkeeper.getUniqueId().toString())
-				.replace("{shop_type}", shopkeeper.getType().getDisplayName())
-				.replace("{shop_object_type}", shopObjectTypeName)
-				.replace("{shop_owner_name}", ownerName)
-				.replace("{shop_offers_count}", Integer.toString(offersCount));
+		metrics.recordUpdateFlush(System.nanoTime() - startNanos);
 
-		return detail;
+		this.submitMarkerOperation(Operation.UPDATE, markerManager -> {
+			removedShopkeeperIds.forEach(markerManager::removeShopkeeper);
+			// Only updates the markers if something changed:
+			updatedShopkeepers.forEach(markerManager::addShopkeeper);
+		});
 	}
 
-	void removeShopkeeper(Shopkeeper shopkeeper) {
-		this.runBlueMapOperation(blueMapApi -> {
-			this.removeShopkeeper(blueMapApi, shopkeeper);
-		});
+	MarkerMetrics getMetrics() {
+		return metrics;
 	}
 
-	private void removeShopkeeper(BlueMapAPI blueMapApi, Shopkeeper shopkeeper) {
-		assert blueMapApi != null;
-		assert shopkeeper != null;
+	/**
+	 * Gathers the current marker statistics.
+	 * <p>
+	 * The markers per map are counted on the marker thread. The callback is then invoked on the
+	 * main thread, or omitted if the plugin is disabled in the meantime. If the BlueMap API is
+	 * disabled in the meantime, the statistics are provided without the markers per map.
+	 * <p>
+	 * The counting is not recorded as a marker operation, so that requesting the statistics does
+	 * not affect them.
+	 * 
+	 * @param callback
+	 *            receives the formatted statistics
+	 */
+	public void requestStats(Consumer<List<String>> callback) {
+		var state = blueMapState.get();
+		var markerManager = state.markerManager();
+		if (markerManager == null) {
+			callback.accept(metrics.format(markerUpdateQueue.size(), Map.of()));
+			return;
+		}
+
+		var submitted = this.submitMarkerTask(() -> {
+			Map<String, Integer> markersPerMap = Map.of();
+			// Skip counting if the BlueMap API has been disabled in the meantime:
+			if (this.isCurrentBlueMapGeneration(state.generation())) {
+				try {
+					markersPerMap = markerManager.countMarkersPerMap();
+				} catch (Exception e) {
+					plugin.getLogger().log(Level.WARNING, "Failed to count the BlueMap markers!", e);
+				}
+			}
 
-		// Not skipping virtual shopkeepers here: Maybe the shopkeeper object type changed in the
-		// meantime from previously non-virtual to now virtual.
+			var result = markersPerMap;
+			SchedulerUtils.runOnMainThreadOrOmit(plugin, () -> {
+				callback.accept(metrics.format(markerUpdateQueue.size(), result));
+			});
+		});
+		if (!submitted) {
+			// The integration is being disabled:
+			callback.accept(metrics.format(markerUpdateQueue.size(), Map.of()));
+		}
+	}
 
-		var markerId = this.getMarkerId(shopkeeper);
+	private void startStatsLogTask() {
+		assert statsLogTask == null;
+		var intervalTicks = plugin.getSettings().getStatsLogIntervalSeconds() * 20L;
+		if (intervalTicks <= 0) {
+			return;
+		}
 
-		// Check all worlds: We currently don't remember the world we previously added the marker
-		// to and we cannot use the shopkeeper's world since it might have changed since the marker
-		// was added.
-		var markerCount = 0;
-		for (var world : blueMapApi.getWorlds()) {
-			for (BlueMapMap map : world.getMaps()) {
-				MarkerSet markerSet = this.getMarkerSet(map);
-				if (markerSet == null) {
-					continue;
-				}
+		statsLogTask = SchedulerUtils.runTaskTimerOrOmit(
+				plugin,
+				this::logStats,
+				intervalTicks,
+				intervalTicks
+		);
+	}
 
-				var marker = markerSet.getMarkers().remove(markerId);
-				if (marker != null) {
-					markerCount += 1;
-				}
-			}
+	private void stopStatsLogTask() {
+		if (statsLogTask == null) {
+			return;
 		}
 
-		plugin.debug(shopkeeper.getLogPrefix() + "Removed BlueMap markers from " + markerCount
-				+ " maps.");
+		statsLogTask.cancel();
+		statsLogTask = null;
 	}
 
-	void updateShopkeeper(Shopkeeper shopkeeper) {
-		this.runBlueMapOperation(blueMapApi -> {
-			this.removeShopkeeper(blueMapApi, shopkeeper);
-			this.addShopkeeper(blueMapApi, shopkeeper);
+	// Called on the main thread.
+	private void logStats() {
+		this.requestStats(lines -> {
+			plugin.getLogger().info("Marker statistics:");
+			lines.forEach(plugin.getLogger()::info);
 		});
 	}
 }
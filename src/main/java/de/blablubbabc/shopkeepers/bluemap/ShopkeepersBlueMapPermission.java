@@ -13,6 +13,10 @@ public class ShopkeepersBlueMapPermission {
 	 * The {@code shopkeepers-bluemap.reload} permission.
 	 */
 	public static String RELOAD = "shopkeepers-bluemap.reload";
+	/**
+	 * The {@code shopkeepers-bluemap.stats} permission.
+	 */
+	public static String STATS = "shopkeepers-bluemap.stats";
 
 	private ShopkeepersBlueMapPermission() {
 	}
@@ -6,7 +6,8 @@ import de.blablubbabc.shopkeepers.bluemap.command.Commands;
 
 public class ShopkeepersBlueMapPlugin extends JavaPlugin {
 
-	private final Settings settings = new Settings(this);
+	// Loaded during enable. Replaced on every reload.
+	private volatile Settings settings = null;
 	private final Commands commands = new Commands(this);
 	private final ShopkeepersBlueMap shopkeepersBlueMap = new ShopkeepersBlueMap(this);
 
@@ -18,6 +19,7 @@ public class ShopkeepersBlueMapPlugin extends JavaPlugin {
 	public void onEnable() {
 		this.saveDefaultConfig();
 		this.reloadConfig();
+		settings = Settings.load(this.getConfig());
 
 		commands.register();
 
@@ -31,10 +33,30 @@ public class ShopkeepersBlueMapPlugin extends JavaPlugin {
 
 	/**
 	 * Reloads the plugin.
+	 * <p>
+	 * If the integration stays enabled, the existing markers are kept and only the markers that
+	 * are affected by the changed settings are updated.
 	 */
 	public void reload() {
-		this.onDisable();
-		this.onEnable();
+		var previousSettings = settings;
+
+		this.saveDefaultConfig();
+		this.reloadConfig();
+		var newSettings = Settings.load(this.getConfig());
+
+		if (previousSettings == null || newSettings.requiresRestart(previousSettings)) {
+			// E.g. the integration is enabled or disabled: Full restart.
+			this.onDisable();
+			this.onEnable();
+			return;
+		}
+
+		settings = newSettings;
+		shopkeepersBlueMap.onSettingsReloaded(previousSettings, newSettings);
+	}
+
+	public ShopkeepersBlueMap getShopkeepersBlueMap() {
+		return shopkeepersBlueMap;
 	}
 
 	public Settings getSettings() {
@@ -0,0 +1,321 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes the shopkeeper markers to the marker files of statically hosted BlueMap maps, e.g. maps
+ * that are rendered with the BlueMap CLI.
+ * <p>
+ * These maps are not known to the BlueMap API. Instead, the configured map ids are mapped to
+ * world names, and the markers of each map are written in BlueMap's marker format to the file
+ * <code>maps/&lt;map-id&gt;/live/markers.json</code> inside the web root.
+ * <p>
+ * Only the files of the maps whose markers changed are rewritten. The files are written in a
+ * streaming fashion to a temporary file, which then replaces the previous file. The files are
+ * not written while the markers for all shopkeepers are added, so that we never replace the
+ * previous files with partially populated markers. The writes are rate-limited: The changed maps
+ * are collected and written at most once per write interval. Clustering is not supported: The
+ * markers of all shopkeepers are written individually.
+ * <p>
+ * The markers are received from the marker manager, and are therefore only updated while the
+ * BlueMap API on this server is enabled.
+ * <p>
+ * Not thread-safe: Only used on the marker thread.
+ */
+final class StaticMarkerExporter implements MarkerExporter {
+
+	private static final String MARKERS_FILE = "live/markers.json";
+
+	private final Logger logger;
+	private final Supplier<Settings> settings;
+	private final Path webRoot;
+	private final long writeIntervalNanos;
+	// World name -> ids of the maps of the world
+	private final Map<String, List<String>> worldMaps = new HashMap<>();
+
+	// Shopkeeper id -> exported markers
+	private final Map<Integer, MarkerCache.Entry> exported = new HashMap<>();
+	// World name -> shopkeeper id -> exported markers. Sorted, so that the written files are
+	// stable.
+	private final Map<String, Map<Integer, MarkerCache.Entry>> exportedByWorld = new HashMap<>();
+	// The shopkeepers that have not been exported again since the resync started:
+	private final Set<Integer> unreconciled = new HashSet<>();
+	private boolean resyncing = false;
+	// Set once the markers for all shopkeepers have been added:
+	private boolean synced = false;
+	// The ids of the maps whose files need to be written again:
+	private final Set<String> dirtyMaps = new TreeSet<>();
+	private long lastWriteNanos;
+
+	/**
+	 * Creates a new static marker exporter.
+	 *
+	 * @param logger
+	 *            the logger
+	 * @param settings
+	 *            the settings
+	 * @param webRoot
+	 *            the web root of the statically hosted BlueMap web app
+	 * @param writeIntervalMillis
+	 *            the minimum interval in milliseconds between writes
+	 * @param maps
+	 *            map id -&gt; world name
+	 */
+	StaticMarkerExporter(
+			Logger logger,
+			Supplier<Settings> settings,
+			Path webRoot,
+			long writeIntervalMillis,
+			Map<String, String> maps
+	) {
+		this.logger = logger;
+		this.settings = settings;
+		this.webRoot = webRoot;
+		this.writeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(writeIntervalMillis);
+		this.lastWriteNanos = System.nanoTime() - writeIntervalNanos;
+		maps.forEach((mapId, worldName) -> {
+			worldMaps.computeIfAbsent(worldName, key -> new ArrayList<>()).add(mapId);
+		});
+	}
+
+	@Override
+	public void put(MarkerCache.Entry entry) {
+		var shopkeeperId = entry.shopkeeper().id();
+		unreconciled.remove(shopkeeperId);
+		var previous = exported.put(shopkeeperId, entry);
+		if (entry.equals(previous)) {
+			return;
+		}
+
+		if (previous != null) {
+			this.removeFromWorld(previous);
+		}
+
+		var worldName = entry.shopkeeper().worldName();
+		if (worldName != null) {
+			exportedByWorld.computeIfAbsent(worldName, key -> new TreeMap<>())
+					.put(shopkeeperId, entry);
+		}
+
+		// Only the maps that show the previous or the new markers are affected:
+		this.markDirty(previous);
+		this.markDirty(entry);
+	}
+
+	@Override
+	public void remove(int shopkeeperId) {
+		unreconciled.remove(shopkeeperId);
+		var previous = exported.remove(shopkeeperId);
+		if (previous == null) {
+			return;
+		}
+
+		this.removeFromWorld(previous);
+		this.markDirty(previous);
+	}
+
+	private void removeFromWorld(MarkerCache.Entry entry) {
+		var worldName = entry.shopkeeper().worldName();
+		if (worldName == null) {
+			return;
+		}
+
+		var worldEntries = exportedByWorld.get(worldName);
+		if (worldEntries == null) {
+			return;
+		}
+
+		worldEntries.remove(entry.shopkeeper().id());
+		if (worldEntries.isEmpty()) {
+			exportedByWorld.remove(worldName);
+		}
+	}
+
+	private void markDirty(MarkerCache.@Nullable Entry entry) {
+		if (entry == null) {
+			return;
+		}
+
+		var worldName = entry.shopkeeper().worldName();
+		if (worldName == null) {
+			return;
+		}
+
+		var settings = this.settings.get();
+		for (var mapId : worldMaps.getOrDefault(worldName, List.of())) {
+			if (settings.getMapRule(mapId).test(entry.shopkeeper())) {
+				dirtyMaps.add(mapId);
+			}
+		}
+	}
+
+	@Override
+	public void beginResync() {
+		resyncing = true;
+		unreconciled.clear();
+		unreconciled.addAll(exported.keySet());
+	}
+
+	@Override
+	public void endResync() {
+		if (!resyncing) {
+			return;
+		}
+		resyncing = false;
+
+		// Marks the maps of the removed markers as dirty. The maps of the markers that changed
+		// during the resync are already marked as dirty.
+		var removed = new ArrayList<>(unreconciled);
+		removed.forEach(this::remove);
+		unreconciled.clear();
+
+		if (!synced) {
+			synced = true;
+			// Replace the files of all maps, including the maps that no longer have any markers:
+			worldMaps.values().forEach(dirtyMaps::addAll);
+		}
+	}
+
+	/**
+	 * Writes the files of the changed maps, unless the markers for all shopkeepers are currently
+	 * added, or the previous write was less than the write interval ago.
+	 */
+	@Override
+	public void flush() {
+		if (!synced || resyncing || dirtyMaps.isEmpty()) {
+			return;
+		}
+
+		var now = System.nanoTime();
+		if (now - lastWriteNanos < writeIntervalNanos) {
+			// Written by a later flush:
+			return;
+		}
+
+		lastWriteNanos = now;
+		worldMaps.forEach((worldName, mapIds) -> {
+			for (var mapId : mapIds) {
+				if (dirtyMaps.contains(mapId)) {
+					this.writeMap(mapId, worldName);
+				}
+			}
+		});
+		dirtyMaps.clear();
+	}
+
+	private void writeMap(String mapId, String worldName) {
+		var file = webRoot.resolve("maps").resolve(mapId).resolve(MARKERS_FILE);
+		var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			Files.createDirectories(file.getParent());
+			try (var out = new JsonWriter(
+					Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)
+			)) {
+				this.writeMarkerSets(out, mapId, worldName);
+			}
+			Files.move(
+					tempFile,
+					file,
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE
+			);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to write the markers of map " + mapId, e);
+			try {
+				Files.deleteIfExists(tempFile);
+			} catch (IOException e2) {
+				// Ignored.
+			}
+		}
+	}
+
+	private void writeMarkerSets(
+			JsonWriter out,
+			String mapId,
+			String worldName
+	) throws IOException {
+		var settings = this.settings.get();
+		var mapRule = settings.getMapRule(mapId);
+		var worldEntries = exportedByWorld.getOrDefault(worldName, Map.of());
+
+		// Marker set id -> the markers of the marker set:
+		var markerSets = new TreeMap<String, List<MarkerCache.Entry>>();
+		for (var entry : worldEntries.values()) {
+			var shopkeeper = entry.shopkeeper();
+			if (!mapRule.test(shopkeeper)) {
+				continue;
+			}
+
+			var markerSetId = settings.getMarkerSetId(shopkeeper.shopTypeId());
+			markerSets.computeIfAbsent(markerSetId, key -> new ArrayList<>()).add(entry);
+		}
+
+		out.beginObject();
+		for (var markerSet : markerSets.entrySet()) {
+			var markerSetSettings = settings.getMarkerSetSettings(markerSet.getKey());
+			out.name(markerSet.getKey()).beginObject();
+			out.name("label").value(markerSetSettings.label());
+			out.name("toggleable").value(true);
+			out.name("defaultHidden").value(markerSetSettings.defaultHidden());
+			out.name("sorting").value(markerSetSettings.sorting());
+
+			out.name("markers").beginObject();
+			for (var entry : markerSet.getValue()) {
+				var state = entry.state().withDistanceRange(
+						mapRule.minDistance(),
+						mapRule.maxDistance()
+				);
+				out.name(MarkerManager.getMarkerId(entry.shopkeeper().id()));
+				writeMarker(out, state);
+			}
+			out.endObject();
+
+			out.endObject();
+		}
+		out.endObject();
+	}
+
+	// In the format of BlueMap's POI markers.
+	private static void writeMarker(JsonWriter out, MarkerState state) throws IOException {
+		out.beginObject();
+		out.name("type").value("poi");
+		out.name("label").value(state.label());
+		out.name("detail").value(state.detail());
+		out.name("icon").value(state.icon());
+		out.name("anchor").beginObject()
+				.name("x").value(state.anchorX())
+				.name("y").value(state.anchorY())
+				.endObject();
+		out.name("position").beginObject()
+				.name("x").value(state.x())
+				.name("y").value(state.y())
+				.name("z").value(state.z())
+				.endObject();
+		out.name("classes").beginArray().endArray();
+		out.name("sorting").value(0);
+		out.name("listed").value(true);
+		out.name("minDistance").value(state.minDistance());
+		out.name("maxDistance").value(state.maxDistance());
+		out.endObject();
+	}
+}
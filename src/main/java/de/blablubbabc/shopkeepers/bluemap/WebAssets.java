@@ -0,0 +1,250 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Writes the bundled web assets (e.g. the marker icons) to the BlueMap web app.
+ * <p>
+ * We keep a manifest of the content hashes of the assets that we wrote. This allows us to:
+ * <ul>
+ * <li>Skip assets that are unchanged since we last wrote them, without reading them again.
+ * <li>Update assets that changed in a new plugin version.
+ * <li>Keep assets that the user replaced with their own assets: If the hash of the existing
+ * asset does not match the hash of the asset that we wrote, we don't replace it.
+ * </ul>
+ * The assets are written in parallel, and a failure to write one asset does not affect the other
+ * assets.
+ */
+class WebAssets {
+
+	private static final String WEB_SHOPKEEPERS_ASSETS = "assets/shopkeepers";
+	private static final String JAR_ASSETS = "assets";
+	private static final List<String> ASSETS = List.of(
+			"admin16.png",
+			"admin24.png",
+			"admin32.png",
+			"book16.png",
+			"book24.png",
+			"book32.png",
+			"buy16.png",
+			"buy24.png",
+			"buy32.png",
+			"sell16.png",
+			"sell24.png",
+			"sell32.png",
+			"trade16.png",
+			"trade24.png",
+			"trade32.png"
+	);
+	// Stored next to the assets: Each line contains the asset name and its hash.
+	private static final String MANIFEST = ".manifest";
+
+	private final ShopkeepersBlueMapPlugin plugin;
+	// Asset name -> hash of the bundled asset. The bundled assets don't change while the plugin is
+	// running, so we only need to hash them once.
+	private final Map<String, String> bundledHashes = new ConcurrentHashMap<>();
+
+	WebAssets(ShopkeepersBlueMapPlugin plugin) {
+		this.plugin = plugin;
+	}
+
+	/**
+	 * Writes the assets to the given web root.
+	 * <p>
+	 * Potentially called off the main thread. Blocks until all assets are written. Concurrent
+	 * calls are serialized, since they would otherwise write the same temporary files and
+	 * manifest.
+	 *
+	 * @param webRoot
+	 *            the web root of the BlueMap web app
+	 */
+	synchronized void write(Path webRoot) {
+		// The marker icons are the same across all worlds and maps. We therefore save them to the
+		// app's base assets directory.
+		var assetsPath = webRoot.resolve(WEB_SHOPKEEPERS_ASSETS);
+		try {
+			Files.createDirectories(assetsPath);
+		} catch (IOException e) {
+			plugin.getLogger().log(
+					Level.SEVERE,
+					"Failed to create assets directory: " + assetsPath,
+					e
+			);
+			return;
+		}
+
+		var manifestPath = assetsPath.resolve(MANIFEST);
+		var manifest = this.readManifest(manifestPath);
+		// Asset name -> hash of the asset that we wrote or kept:
+		var newManifest = new ConcurrentHashMap<String, String>();
+		var writtenCount = new AtomicInteger();
+
+		ASSETS.parallelStream().forEach(asset -> {
+			try {
+				var hash = this.writeAsset(
+						assetsPath.resolve(asset),
+						asset,
+						manifest.get(asset),
+						writtenCount
+				);
+				if (hash != null) {
+					newManifest.put(asset, hash);
+				} else {
+					// Unchanged, or replaced by the user: Keep the previous manifest entry, if any.
+					var previousHash = manifest.get(asset);
+					if (previousHash != null) {
+						newManifest.put(asset, previousHash);
+					}
+				}
+			} catch (IOException e) {
+				plugin.getLogger().log(
+						Level.SEVERE,
+						"Failed to write asset: " + assetsPath.resolve(asset),
+						e
+				);
+			}
+		});
+
+		if (!newManifest.equals(manifest)) {
+			this.writeManifest(manifestPath, newManifest);
+		}
+
+		if (writtenCount.get() > 0) {
+			plugin.getLogger().info("Wrote " + writtenCount.get() + " web assets.");
+		}
+	}
+
+	/**
+	 * Writes the specified asset, if necessary.
+	 *
+	 * @param targetPath
+	 *            the target path
+	 * @param asset
+	 *            the asset name
+	 * @param writtenHash
+	 *            the hash of the asset that we previously wrote, or <code>null</code>
+	 * @param writtenCount
+	 *            incremented if the asset is written
+	 * @return the hash of the bundled asset if the existing asset matches it or if the asset was
+	 *         written, or <code>null</code> if the asset was kept as it is
+	 * @throws IOException
+	 *             if the asset could not be written
+	 */
+	private @Nullable String writeAsset(
+			Path targetPath,
+			String asset,
+			@Nullable String writtenHash,
+			AtomicInteger writtenCount
+	) throws IOException {
+		var hash = this.getBundledHash(asset);
+		if (Files.exists(targetPath)) {
+			if (hash.equals(writtenHash)) {
+				// Unchanged since we last wrote it. If the user replaced the asset with their own
+				// asset, we keep that asset.
+				return null;
+			}
+
+			var existingHash = hash(Files.readAllBytes(targetPath));
+			if (existingHash.equals(hash)) {
+				// Already up-to-date, but not in the manifest yet (e.g. written by a previous
+				// plugin version without manifest): Adopt it, so that later changes of the bundled
+				// asset are applied.
+				return hash;
+			}
+
+			// Note: We don't replace existing assets that we did not write, since the user might
+			// have replaced them with their own assets.
+			if (writtenHash == null || !writtenHash.equals(existingHash)) {
+				return null;
+			}
+
+			// The asset is unchanged since we wrote it, but the bundled asset changed: Update.
+		}
+
+		// Write to a temporary file first, so that the web app never serves partially written
+		// assets:
+		var data = this.readBundledAsset(asset);
+		var tempPath = targetPath.resolveSibling(targetPath.getFileName() + ".tmp");
+		Files.write(tempPath, data);
+		Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+		writtenCount.incrementAndGet();
+		return hash;
+	}
+
+	private String getBundledHash(String asset) throws IOException {
+		var hash = bundledHashes.get(asset);
+		if (hash == null) {
+			hash = hash(this.readBundledAsset(asset));
+			bundledHashes.put(asset, hash);
+		}
+		return hash;
+	}
+
+	private byte[] readBundledAsset(String asset) throws IOException {
+		var sourcePath = JAR_ASSETS + "/" + asset;
+		try (InputStream inputStream = plugin.getResource(sourcePath)) {
+			if (inputStream == null) {
+				throw new IOException("Missing bundled asset: " + sourcePath);
+			}
+			return inputStream.readAllBytes();
+		}
+	}
+
+	private static String hash(byte[] data) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java implementation is required to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Map<String, String> readManifest(Path manifestPath) {
+		var manifest = new TreeMap<String, String>();
+		if (!Files.isRegularFile(manifestPath)) {
+			return manifest;
+		}
+
+		try {
+			for (var line : Files.readAllLines(manifestPath, StandardCharsets.UTF_8)) {
+				var parts = line.trim().split(" ", 2);
+				if (parts.length == 2) {
+					manifest.put(parts[0], parts[1]);
+				}
+			}
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.WARNING, "Failed to read assets manifest: "
+					+ manifestPath, e);
+		}
+		return manifest;
+	}
+
+	private void writeManifest(Path manifestPath, Map<String, String> manifest) {
+		var lines = new TreeMap<>(manifest).entrySet().stream()
+				.map(entry -> entry.getKey() + " " + entry.getValue())
+				.toList();
+		try {
+			Files.write(manifestPath, lines, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			plugin.getLogger().log(Level.WARNING, "Failed to write assets manifest: "
+					+ manifestPath, e);
+		}
+	}
+}
@@ -25,5 +25,6 @@ class ShopkeepersBlueMapCommand extends RootCommand {
 
 		this.addSubCommand(new HelpCommand(this));
 		this.addSubCommand(new ReloadCommand(plugin));
+		this.addSubCommand(new StatsCommand(plugin));
 	}
 }
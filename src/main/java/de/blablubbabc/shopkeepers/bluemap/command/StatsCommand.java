@@ -0,0 +1,33 @@
+package de.blablubbabc.shopkeepers.bluemap.command;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.bukkit.command.CommandSender;
+
+import de.blablubbabc.shopkeepers.bluemap.ShopkeepersBlueMapPermission;
+import de.blablubbabc.shopkeepers.bluemap.ShopkeepersBlueMapPlugin;
+import de.blablubbabc.shopkeepers.bluemap.command.lib.Command;
+
+public class StatsCommand extends Command {
+
+	private final ShopkeepersBlueMapPlugin plugin;
+
+	public StatsCommand(ShopkeepersBlueMapPlugin plugin) {
+		super(
+				"stats",
+				Collections.emptyList(),
+				ShopkeepersBlueMapPermission.STATS,
+				"Shows marker statistics."
+		);
+		this.plugin = plugin;
+	}
+
+	@Override
+	protected void execute(CommandSender sender, List<? extends String> args) {
+		plugin.getShopkeepersBlueMap().requestStats(lines -> {
+			sender.sendMessage(c("&aMarker statistics:"));
+			lines.forEach(line -> sender.sendMessage(c("&7" + line)));
+		});
+	}
+}
@@ -75,6 +75,24 @@ public final class SchedulerUtils {
 		return null;
 	}
 
+	public static @Nullable BukkitTask runTaskTimerOrOmit(
+			Plugin plugin,
+			Runnable task,
+			long delay,
+			long period
+	) {
+		validatePluginTask(plugin, task);
+		// Tasks can only be registered while enabled:
+		if (plugin.isEnabled()) {
+			try {
+				return Bukkit.getScheduler().runTaskTimer(plugin, task, delay, period);
+			} catch (IllegalPluginAccessException e) {
+				// Couldn't register task: The plugin got disabled just now.
+			}
+		}
+		return null;
+	}
+
 	public static @Nullable BukkitTask runAsyncTaskOrOmit(Plugin plugin, Runnable task) {
 		return runAsyncTaskLaterOrOmit(plugin, task, 0L);
 	}
@@ -0,0 +1,181 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.Test;
+
+import de.blablubbabc.shopkeepers.bluemap.MapRule.Region;
+
+public class MapRuleTest {
+
+	private static ShopkeeperSnapshot shopkeeper(
+			String shopTypeId,
+			String ownerName,
+			int x,
+			int z,
+			int offersCount
+	) {
+		return new ShopkeeperSnapshot(
+				1,
+				new UUID(0L, 1L),
+				"world",
+				x,
+				64,
+				z,
+				shopTypeId,
+				shopTypeId,
+				"villager",
+				"Shop",
+				ownerName,
+				offersCount
+		);
+	}
+
+	private static MapRule rule(
+			Set<String> includedShopTypes,
+			Set<String> excludedShopTypes,
+			Set<String> owners,
+			@Nullable Region region,
+			int minOffers
+	) {
+		return new MapRule(
+				includedShopTypes,
+				excludedShopTypes,
+				owners,
+				region,
+				minOffers,
+				0.0D,
+				1000.0D
+		);
+	}
+
+	private static MapRule load(String yaml) {
+		return MapRule.load(YamlConfiguration.loadConfiguration(new StringReader(yaml)));
+	}
+
+	@Test
+	public void testDefaultShowsAll() {
+		assertTrue(MapRule.DEFAULT.test(shopkeeper("sell", "", 0, 0, -1)));
+		assertTrue(MapRule.DEFAULT.test(shopkeeper("admin", "", -100000, 100000, 0)));
+	}
+
+	@Test
+	public void testIncludedShopTypes() {
+		var rule = rule(Set.of("sell", "buy"), Set.of(), Set.of(), null, 0);
+		assertTrue(rule.test(shopkeeper("sell", "", 0, 0, 0)));
+		assertTrue(rule.test(shopkeeper("buy", "", 0, 0, 0)));
+		assertFalse(rule.test(shopkeeper("trade", "", 0, 0, 0)));
+	}
+
+	@Test
+	public void testExcludedShopTypes() {
+		var rule = rule(Set.of(), Set.of("admin"), Set.of(), null, 0);
+		assertTrue(rule.test(shopkeeper("sell", "", 0, 0, 0)));
+		assertFalse(rule.test(shopkeeper("admin", "", 0, 0, 0)));
+
+		// Exclusions take precedence over inclusions:
+		rule = rule(Set.of("sell"), Set.of("sell"), Set.of(), null, 0);
+		assertFalse(rule.test(shopkeeper("sell", "", 0, 0, 0)));
+	}
+
+	@Test
+	public void testOwners() {
+		var rule = rule(Set.of(), Set.of(), Set.of("notch"), null, 0);
+		assertTrue(rule.test(shopkeeper("sell", "notch", 0, 0, 0)));
+		assertTrue(rule.test(shopkeeper("sell", "Notch", 0, 0, 0)));
+		assertFalse(rule.test(shopkeeper("sell", "jeb_", 0, 0, 0)));
+		// Admin shopkeepers have no owner:
+		assertFalse(rule.test(shopkeeper("admin", "", 0, 0, 0)));
+	}
+
+	@Test
+	public void testRegion() {
+		var rule = rule(Set.of(), Set.of(), Set.of(), new Region(-10, -20, 10, 20), 0);
+		assertTrue(rule.test(shopkeeper("sell", "", 0, 0, 0)));
+		// The bounds are inclusive:
+		assertTrue(rule.test(shopkeeper("sell", "", -10, -20, 0)));
+		assertTrue(rule.test(shopkeeper("sell", "", 10, 20, 0)));
+		assertFalse(rule.test(shopkeeper("sell", "", -11, 0, 0)));
+		assertFalse(rule.test(shopkeeper("sell", "", 11, 0, 0)));
+		assertFalse(rule.test(shopkeeper("sell", "", 0, -21, 0)));
+		assertFalse(rule.test(shopkeeper("sell", "", 0, 21, 0)));
+	}
+
+	@Test
+	public void testMinOffers() {
+		var rule = rule(Set.of(), Set.of(), Set.of(), null, 2);
+		assertTrue(rule.test(shopkeeper("sell", "", 0, 0, 2)));
+		assertTrue(rule.test(shopkeeper("sell", "", 0, 0, 3)));
+		assertFalse(rule.test(shopkeeper("sell", "", 0, 0, 1)));
+		assertFalse(rule.test(shopkeeper("sell", "", 0, 0, 0)));
+	}
+
+	@Test
+	public void testLoad() {
+		var rule = load("""
+				include-shop-types: [sell, buy]
+				exclude-shop-types: [buy]
+				owners: [Notch, jeb_]
+				region:
+				  min-x: 100
+				  min-z: -50
+				  max-x: -100
+				  max-z: 50
+				min-offers: 1
+				min-distance: 10
+				max-distance: 2000
+				""");
+		assertEquals(Set.of("sell", "buy"), rule.includedShopTypes());
+		assertEquals(Set.of("buy"), rule.excludedShopTypes());
+		assertEquals(Set.of("notch", "jeb_"), rule.owners());
+		// The region corners are normalized:
+		assertEquals(new Region(-100, -50, 100, 50), rule.region());
+		assertEquals(1, rule.minOffers());
+		assertEquals(10.0D, rule.minDistance(), 0.0D);
+		assertEquals(2000.0D, rule.maxDistance(), 0.0D);
+	}
+
+	@Test
+	public void testLoadDefaults() {
+		var rule = load("{}");
+		assertEquals(MapRule.DEFAULT, rule);
+		assertNull(rule.region());
+	}
+
+	@Test
+	public void testLoadClampsNegativeValues() {
+		var rule = load("""
+				min-offers: -5
+				min-distance: -1
+				max-distance: -1
+				""");
+		assertEquals(0, rule.minOffers());
+		assertEquals(0.0D, rule.minDistance(), 0.0D);
+		assertEquals(0.0D, rule.maxDistance(), 0.0D);
+	}
+
+	@Test
+	public void testFingerprint() {
+		var rule = rule(Set.of("sell", "buy"), Set.of(), Set.of(), null, 0);
+		var same = rule(Set.of("buy", "sell"), Set.of(), Set.of(), null, 0);
+		var other = rule(Set.of("sell"), Set.of(), Set.of(), null, 0);
+		assertEquals(fingerprint(rule), fingerprint(same));
+		assertNotEquals(fingerprint(rule), fingerprint(other));
+	}
+
+	private static long fingerprint(MapRule rule) {
+		var fingerprint = new Fingerprint();
+		rule.addTo(fingerprint);
+		return fingerprint.get();
+	}
+}
@@ -0,0 +1,248 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.blablubbabc.shopkeepers.bluemap.MarkerCache.Entry;
+
+public class MarkerCacheTest {
+
+	// The file header of the cache format:
+	private static final int MAGIC = 0x534B424D;
+	private static final int VERSION = 1;
+
+	static ShopkeeperSnapshot shopkeeper(int id, @Nullable String worldName, String name) {
+		return new ShopkeeperSnapshot(
+				id,
+				new UUID(42L, id),
+				worldName,
+				10 * id,
+				64,
+				-20 * id,
+				"sell",
+				"Selling shop",
+				"Villager",
+				name,
+				"Notch",
+				3
+		);
+	}
+
+	static Entry entry(int id, @Nullable String worldName, String name) {
+		var state = new MarkerState(
+				name,
+				"<b>" + name + "</b>",
+				"assets/shop.png",
+				12,
+				24,
+				10.5D * id,
+				64.0D,
+				-20.5D * id,
+				0.0D,
+				10000000.0D
+		);
+		return new Entry(shopkeeper(id, worldName, name), state, 0x1234L * id);
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Logger logger;
+	private Path file;
+	private MarkerCache cache;
+
+	@Before
+	public void setUp() throws IOException {
+		// Don't spam the test output with the expected warnings:
+		logger = Logger.getAnonymousLogger();
+		logger.setLevel(Level.OFF);
+		file = folder.getRoot().toPath().resolve("cache").resolve("markers.bin");
+		cache = new MarkerCache(logger, file);
+	}
+
+	private void writeFile(byte[] contents) throws IOException {
+		Files.createDirectories(file.getParent());
+		try (var out = new GZIPOutputStream(Files.newOutputStream(file))) {
+			out.write(contents);
+		}
+	}
+
+	private static byte[] header(int count) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		var out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(count);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		var result = new byte[first.length + second.length];
+		System.arraycopy(first, 0, result, 0, first.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		var entries = List.of(
+				entry(1, "world", "Shop"),
+				entry(2, null, "Virtual shop"),
+				entry(3, "world_nether", "Äpfel & <Birnen> 🍎")
+		);
+		cache.save(entries);
+		assertTrue(Files.isRegularFile(file));
+		// The temporary file was moved:
+		assertFalse(Files.exists(file.resolveSibling("markers.bin.tmp")));
+
+		var loaded = new MarkerCache(logger, file).load();
+		assertEquals(entries.size(), loaded.size());
+		for (int i = 0; i < entries.size(); i++) {
+			var entry = entries.get(i);
+			var loadedEntry = loaded.get(i);
+			assertEquals(entry, loadedEntry.entry());
+			assertEquals(entry.shopkeeper().fingerprint(), loadedEntry.fingerprint());
+		}
+	}
+
+	@Test
+	public void testEmpty() {
+		cache.save(List.of());
+		assertEquals(List.of(), cache.load());
+	}
+
+	@Test
+	public void testSaveReplaces() {
+		cache.save(List.of(entry(1, "world", "a"), entry(2, "world", "b")));
+		cache.save(List.of(entry(3, "world", "c")));
+
+		var loaded = cache.load();
+		assertEquals(1, loaded.size());
+		assertEquals(entry(3, "world", "c"), loaded.get(0).entry());
+	}
+
+	@Test
+	public void testEntryRoundTrip() throws IOException {
+		var entry = entry(7, "world", "Shop");
+		var bytes = new ByteArrayOutputStream();
+		MarkerCache.writeEntry(new DataOutputStream(bytes), entry);
+
+		var in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		var loaded = MarkerCache.readEntry(in);
+		assertEquals(entry, loaded.entry());
+		assertEquals(entry.shopkeeper().fingerprint(), loaded.fingerprint());
+		// The whole entry was consumed:
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testMissingFile() {
+		assertEquals(List.of(), cache.load());
+	}
+
+	@Test
+	public void testNotGzipped() throws IOException {
+		Files.createDirectories(file.getParent());
+		Files.write(file, header(0));
+		assertEquals(List.of(), cache.load());
+	}
+
+	@Test
+	public void testUnsupportedFormat() throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		var out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION + 1);
+		out.writeInt(0);
+		writeFile(bytes.toByteArray());
+		assertEquals(List.of(), cache.load());
+
+		bytes.reset();
+		out.writeInt(~MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(0);
+		writeFile(bytes.toByteArray());
+		assertEquals(List.of(), cache.load());
+	}
+
+	@Test
+	public void testNegativeCount() throws IOException {
+		writeFile(header(-1));
+		assertEquals(List.of(), cache.load());
+	}
+
+	@Test
+	public void testCountExceedsEntries() throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		MarkerCache.writeEntry(new DataOutputStream(bytes), entry(1, "world", "Shop"));
+		// Claims more entries than the file contains. Not allocated upfront:
+		writeFile(concat(header(Integer.MAX_VALUE), bytes.toByteArray()));
+		assertEquals(List.of(), cache.load());
+	}
+
+	@Test
+	public void testTruncated() throws IOException {
+		cache.save(List.of(entry(1, "world", "Shop"), entry(2, "world", "Shop")));
+
+		var bytes = new ByteArrayOutputStream();
+		MarkerCache.writeEntry(new DataOutputStream(bytes), entry(1, "world", "Shop"));
+		var entryBytes = bytes.toByteArray();
+		for (var length : new int[] { 0, 1, 20, entryBytes.length - 1 }) {
+			var truncated = new byte[length];
+			System.arraycopy(entryBytes, 0, truncated, 0, length);
+			writeFile(concat(header(1), truncated));
+			assertEquals(List.of(), cache.load());
+		}
+	}
+
+	@Test
+	public void testMalformedStringLength() throws IOException {
+		for (var length : new int[] { -1, Integer.MIN_VALUE, 1024 * 1024 + 1, Integer.MAX_VALUE }) {
+			writeFile(concat(header(1), entryWithWorldNameLength(length)));
+			assertEquals(List.of(), cache.load());
+
+			var in = new DataInputStream(new ByteArrayInputStream(entryWithWorldNameLength(length)));
+			try {
+				MarkerCache.readEntry(in);
+				fail("Expected an IOException for string length " + length);
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("Invalid string length"));
+			}
+		}
+	}
+
+	// The start of an entry up to the length of the world name.
+	private static byte[] entryWithWorldNameLength(int length) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		var out = new DataOutputStream(bytes);
+		out.writeLong(0L); // Fingerprint
+		out.writeLong(0L); // Settings fingerprint
+		out.writeInt(1); // Id
+		out.writeLong(0L); // Unique id
+		out.writeLong(1L);
+		out.writeBoolean(true); // World name present
+		out.writeInt(length);
+		return bytes.toByteArray();
+	}
+}
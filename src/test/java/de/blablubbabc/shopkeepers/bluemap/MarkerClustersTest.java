@@ -0,0 +1,223 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.blablubbabc.shopkeepers.bluemap.MarkerClusters.Cluster;
+import de.blablubbabc.shopkeepers.bluemap.MarkerTemplate.Placeholder;
+import de.blablubbabc.shopkeepers.bluemap.Settings.ClusterSettings;
+
+public class MarkerClustersTest {
+
+	private static final String WORLD = "world";
+
+	private static ClusterSettings clusterSettings(int maxDetailEntries) {
+		return new ClusterSettings(
+				64,
+				"cluster.png",
+				8,
+				16,
+				MarkerTemplate.compile("{shop_count} shops", EnumSet.of(Placeholder.SHOP_COUNT)),
+				maxDetailEntries
+		);
+	}
+
+	private static MarkerState state(String label, double x, double z) {
+		return new MarkerState(label, "", "shop.png", 1, 2, x, 64.0D, z, 10.0D, 500.0D);
+	}
+
+	private static List<String> getMarkerIds(List<Cluster> clusters) {
+		return clusters.stream().map(Cluster::getMarkerId).toList();
+	}
+
+	@Test
+	public void testSameCell() {
+		var clusters = new MarkerClusters(clusterSettings(10));
+		clusters.put(1, WORLD, state("a", 0.5D, 0.5D));
+		clusters.put(2, WORLD, state("b", 63.5D, 63.5D));
+
+		var dirty = clusters.takeDirtyClusters();
+		assertEquals(List.of("cluster_0_0"), getMarkerIds(dirty));
+		assertEquals(2, clusters.getShopkeeperCount());
+	}
+
+	@Test
+	public void testDifferentCells() {
+		var clusters = new MarkerClusters(clusterSettings(10));
+		clusters.put(1, WORLD, state("a", 0.5D, 0.5D));
+		clusters.put(2, WORLD, state("b", 64.5D, 0.5D));
+		clusters.put(3, WORLD, state("c", 0.5D, 128.5D));
+
+		var dirty = clusters.takeDirtyClusters();
+		assertEquals(
+				new HashSet<>(List.of("cluster_0_0", "cluster_1_0", "cluster_0_2")),
+				new HashSet<>(getMarkerIds(dirty))
+		);
+	}
+
+	@Test
+	public void testNegativeCoordinates() {
+		var clusters = new MarkerClusters(clusterSettings(10));
+		// Rounded towards negative infinity, so that the cells don't overlap at the origin:
+		clusters.put(1, WORLD, state("a", -0.5D, -64.0D));
+		clusters.put(2, WORLD, state("b", -64.5D, 0.5D));
+
+		var dirty = clusters.takeDirtyClusters();
+		assertEquals(
+				new HashSet<>(List.of("cluster_-1_-1", "cluster_-2_0")),
+				new HashSet<>(getMarkerIds(dirty))
+		);
+	}
+
+	@Test
+	public void testDifferentWorlds() {
+		var clusters = new MarkerClusters(clusterSettings(10));
+		clusters.put(1, "world", state("a", 0.5D, 0.5D));
+		clusters.put(2, "world_nether", state("b", 0.5D, 0.5D));
+
+		var dirty = clusters.takeDirtyClusters();
+		assertEquals(2, dirty.size());
+		assertEquals(
+				new HashSet<>(List.of("world", "world_nether")),
+				new HashSet<>(dirty.stream().map(Cluster::getWorldName).toList())
+		);
+	}
+
+	@Test
+	public void testSingleShopkeeperUsesOwnMarker() {
+		var clusters = new MarkerClusters(clusterSettings(10));
+		var state = state("a", 0.5D, 0.5D);
+		clusters.put(1, WORLD, state);
+
+		var cluster = clusters.takeDirtyClusters().get(0);
+		assertSame(state, cluster.render(clusterSettings(10)));
+	}
+
+	@Test
+	public void testRender() {
+		var settings = clusterSettings(10);
+		var clusters = new MarkerClusters(settings);
+		clusters.put(2, WORLD, state("b", 10.0D, 20.0D));
+		clusters.put(1, WORLD, state("a", 20.0D, 40.0D));
+
+		var rendered = clusters.takeDirtyClusters().get(0).render(settings);
+		assertEquals("2 shops", rendered.label());
+		// Sorted by shopkeeper id:
+		assertEquals("a<br>b", rendered.detail());
+		assertEquals("cluster.png", rendered.icon());
+		assertEquals(8, rendered.anchorX());
+		assertEquals(16, rendered.anchorY());
+		assertEquals(15.0D, rendered.x(), 0.0D);
+		assertEquals(64.0D, rendered.y(), 0.0D);
+		assertEquals(30.0D, rendered.z(), 0.0D);
+		assertEquals(10.0D, rendered.minDistance(), 0.0D);
+		assertEquals(500.0D, rendered.maxDistance(), 0.0D);
+	}
+
+	@Test
+	public void testDetailEscaping() {
+		var settings = clusterSettings(10);
+		var clusters = new MarkerClusters(settings);
+		clusters.put(1, WORLD, state("<b>Tom & \"Jerry\"</b>", 0.5D, 0.5D));
+		clusters.put(2, WORLD, state("Bob's", 0.5D, 0.5D));
+
+		var rendered = clusters.takeDirtyClusters().get(0).render(settings);
+		assertEquals(
+				"&lt;b&gt;Tom &amp; &quot;Jerry&quot;&lt;/b&gt;<br>Bob&#39;s",
+				rendered.detail()
+		);
+	}
+
+	@Test
+	public void testDetailEntryLimit() {
+		var settings = clusterSettings(2);
+		var clusters = new MarkerClusters(settings);
+		for (int id = 1; id <= 5; id++) {
+			clusters.put(id, WORLD, state("s" + id, 0.5D, 0.5D));
+		}
+
+		var rendered = clusters.takeDirtyClusters().get(0).render(settings);
+		assertEquals("5 shops", rendered.label());
+		assertEquals("s1<br>s2<br>... (3 more)", rendered.detail());
+
+		// Marks the cluster as dirty again:
+		clusters.put(1, WORLD, state("t1", 0.5D, 0.5D));
+		var noEntriesSettings = clusterSettings(0);
+		rendered = clusters.takeDirtyClusters().get(0).render(noEntriesSettings);
+		assertEquals("... (5 more)", rendered.detail());
+	}
+
+	@Test
+	public void testUnchangedPutIsNotDirty() {
+		var clusters = new MarkerClusters(clusterSettings(10));
+		clusters.put(1, WORLD, state("a", 0.5D, 0.5D));
+		clusters.takeDirtyClusters();
+
+		clusters.put(1, WORLD, state("a", 0.5D, 0.5D));
+		assertTrue(clusters.takeDirtyClusters().isEmpty());
+
+		clusters.put(1, WORLD, state("b", 0.5D, 0.5D));
+		assertEquals(1, clusters.takeDirtyClusters().size());
+	}
+
+	@Test
+	public void testMove() {
+		var settings = clusterSettings(10);
+		var clusters = new MarkerClusters(settings);
+		clusters.put(1, WORLD, state("a", 0.5D, 0.5D));
+		clusters.put(2, WORLD, state("b", 0.5D, 0.5D));
+		clusters.takeDirtyClusters();
+
+		clusters.put(2, WORLD, state("b", 100.0D, 0.5D));
+		var dirty = clusters.takeDirtyClusters();
+		assertEquals(
+				new HashSet<>(List.of("cluster_0_0", "cluster_1_0")),
+				new HashSet<>(getMarkerIds(dirty))
+		);
+		assertEquals(2, clusters.getShopkeeperCount());
+		for (var cluster : dirty) {
+			var label = cluster.getMarkerId().equals("cluster_0_0") ? "a" : "b";
+			assertEquals(label, cluster.render(settings).label());
+		}
+	}
+
+	@Test
+	public void testRemove() {
+		var clusters = new MarkerClusters(clusterSettings(10));
+		clusters.put(1, WORLD, state("a", 0.5D, 0.5D));
+		var cluster = clusters.takeDirtyClusters().get(0);
+
+		clusters.remove(1);
+		assertEquals(0, clusters.getShopkeeperCount());
+		var dirty = clusters.takeDirtyClusters();
+		assertEquals(List.of(cluster), dirty);
+		assertTrue(cluster.isEmpty());
+
+		// Removing an unknown shopkeeper has no effect:
+		clusters.remove(1);
+		assertTrue(clusters.takeDirtyClusters().isEmpty());
+
+		// The empty cluster was dropped, so a new cluster is created for the same cell:
+		clusters.put(1, WORLD, state("a", 0.5D, 0.5D));
+		var recreated = clusters.takeDirtyClusters().get(0);
+		assertEquals(cluster.getMarkerId(), recreated.getMarkerId());
+		assertNotSame(cluster, recreated);
+	}
+
+	@Test
+	public void testClear() {
+		var clusters = new MarkerClusters(clusterSettings(10));
+		clusters.put(1, WORLD, state("a", 0.5D, 0.5D));
+		clusters.clear();
+		assertEquals(0, clusters.getShopkeeperCount());
+		assertTrue(clusters.takeDirtyClusters().isEmpty());
+	}
+}
@@ -0,0 +1,137 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import de.blablubbabc.shopkeepers.bluemap.MarkerTemplate.Placeholder;
+
+public class MarkerTemplateTest {
+
+	private static final Set<Placeholder> ALL_PLACEHOLDERS = EnumSet.allOf(Placeholder.class);
+
+	private static String render(MarkerTemplate template) {
+		return template.render(placeholder -> "<" + placeholder.getKey() + ">");
+	}
+
+	@Test
+	public void testLiteralOnly() {
+		var template = MarkerTemplate.compile("Shops", ALL_PLACEHOLDERS);
+		assertEquals("Shops", render(template));
+		assertFalse(template.uses(Placeholder.SHOP_NAME));
+	}
+
+	@Test
+	public void testEmpty() {
+		var template = MarkerTemplate.compile("", ALL_PLACEHOLDERS);
+		assertEquals("", render(template));
+	}
+
+	@Test
+	public void testPlaceholders() {
+		var template = MarkerTemplate.compile(
+				"{shop_owner_name}'s {shop_name} (selling)",
+				ALL_PLACEHOLDERS
+		);
+		assertEquals("<shop_owner_name>'s <shop_name> (selling)", render(template));
+		assertTrue(template.uses(Placeholder.SHOP_OWNER_NAME));
+		assertTrue(template.uses(Placeholder.SHOP_NAME));
+		assertFalse(template.uses(Placeholder.SHOP_ID));
+	}
+
+	@Test
+	public void testAdjacentPlaceholders() {
+		var template = MarkerTemplate.compile("{shop_id}{shop_name}", ALL_PLACEHOLDERS);
+		assertEquals("<shop_id><shop_name>", render(template));
+	}
+
+	@Test
+	public void testRepeatedPlaceholder() {
+		var template = MarkerTemplate.compile("{shop_id}-{shop_id}", ALL_PLACEHOLDERS);
+		assertEquals("<shop_id>-<shop_id>", render(template));
+	}
+
+	@Test
+	public void testUnsupportedPlaceholderIsLiteral() {
+		var template = MarkerTemplate.compile(
+				"{shop_name} {shop_id}",
+				EnumSet.of(Placeholder.SHOP_ID)
+		);
+		assertEquals("{shop_name} <shop_id>", render(template));
+		assertFalse(template.uses(Placeholder.SHOP_NAME));
+	}
+
+	@Test
+	public void testUnknownPlaceholderIsLiteral() {
+		var template = MarkerTemplate.compile("{unknown} {} {shop_id}", ALL_PLACEHOLDERS);
+		assertEquals("{unknown} {} <shop_id>", render(template));
+	}
+
+	@Test
+	public void testUnterminatedPlaceholderIsLiteral() {
+		var template = MarkerTemplate.compile("{shop_id} {shop_name", ALL_PLACEHOLDERS);
+		assertEquals("<shop_id> {shop_name", render(template));
+	}
+
+	@Test
+	public void testNestedBraces() {
+		// Braces that don't start a supported placeholder are kept as literal text:
+		var template = MarkerTemplate.compile("{{shop_id}}", ALL_PLACEHOLDERS);
+		assertEquals("{<shop_id>}", render(template));
+
+		template = MarkerTemplate.compile("{a{shop_id}", ALL_PLACEHOLDERS);
+		assertEquals("{a<shop_id>", render(template));
+	}
+
+	@Test
+	public void testResolverOnlyInvokedForContainedPlaceholders() {
+		var template = MarkerTemplate.compile("Id: {shop_id}", ALL_PLACEHOLDERS);
+		List<Placeholder> resolved = new ArrayList<>();
+		var rendered = template.render(placeholder -> {
+			resolved.add(placeholder);
+			return "7";
+		});
+		assertEquals("Id: 7", rendered);
+		assertEquals(List.of(Placeholder.SHOP_ID), resolved);
+	}
+
+	@Test
+	public void testEquals() {
+		var template = MarkerTemplate.compile("{shop_id} shop", ALL_PLACEHOLDERS);
+		assertEquals(template, MarkerTemplate.compile("{shop_id} shop", ALL_PLACEHOLDERS));
+		assertEquals(
+				template.hashCode(),
+				MarkerTemplate.compile("{shop_id} shop", ALL_PLACEHOLDERS).hashCode()
+		);
+		assertNotEquals(template, MarkerTemplate.compile("{shop_id} shops", ALL_PLACEHOLDERS));
+		// The placeholder is kept as literal text:
+		assertNotEquals(
+				template,
+				MarkerTemplate.compile("{shop_id} shop", EnumSet.noneOf(Placeholder.class))
+		);
+	}
+
+	@Test
+	public void testFingerprint() {
+		var template = MarkerTemplate.compile("{shop_id} shop", ALL_PLACEHOLDERS);
+		var same = MarkerTemplate.compile("{shop_id} shop", ALL_PLACEHOLDERS);
+		// Same text, but a literal instead of a placeholder:
+		var literal = MarkerTemplate.compile("{shop_id} shop", EnumSet.noneOf(Placeholder.class));
+		assertEquals(fingerprint(template), fingerprint(same));
+		assertNotEquals(fingerprint(template), fingerprint(literal));
+	}
+
+	private static long fingerprint(MarkerTemplate template) {
+		var fingerprint = new Fingerprint();
+		template.addTo(fingerprint);
+		return fingerprint.get();
+	}
+}
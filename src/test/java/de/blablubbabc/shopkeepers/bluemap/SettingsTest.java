@@ -0,0 +1,158 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.Test;
+
+public class SettingsTest {
+
+	private static final Set<String> ALL_SHOP_TYPES = Set.of("admin", "sell", "buy", "trade", "book");
+
+	private static YamlConfiguration loadDefaultConfig() {
+		var configStream = SettingsTest.class.getResourceAsStream("/config.yml");
+		assertNotNull("Missing default config!", configStream);
+		return YamlConfiguration.loadConfiguration(
+				new InputStreamReader(configStream, StandardCharsets.UTF_8)
+		);
+	}
+
+	private static Settings loadDefaultSettings() {
+		return Settings.load(loadDefaultConfig());
+	}
+
+	private static Settings loadModifiedSettings(String path, Object value) {
+		var config = loadDefaultConfig();
+		config.set(path, value);
+		return Settings.load(config);
+	}
+
+	@Test
+	public void testDefaultSettings() {
+		var settings = loadDefaultSettings();
+		for (var shopTypeId : ALL_SHOP_TYPES) {
+			assertNotNull(settings.getMarkerSettings(shopTypeId));
+		}
+	}
+
+	@Test
+	public void testUnchanged() {
+		var previous = loadDefaultSettings();
+		var settings = loadDefaultSettings();
+		assertFalse(settings.requiresRestart(previous));
+		assertEquals(Set.of(), settings.getChangedMarkerShopTypes(previous));
+	}
+
+	@Test
+	public void testRequiresRestart() {
+		var previous = loadDefaultSettings();
+		assertTrue(loadModifiedSettings("enabled", false).requiresRestart(previous));
+		assertTrue(loadModifiedSettings("marker-cache", false).requiresRestart(previous));
+		assertTrue(loadModifiedSettings("split-marker-sets", true).requiresRestart(previous));
+		assertTrue(loadModifiedSettings("shared-store.mode", "export").requiresRestart(previous));
+		assertTrue(loadModifiedSettings("change-feed.enabled", true).requiresRestart(previous));
+		assertTrue(loadModifiedSettings("clustering.enabled", true).requiresRestart(previous));
+		assertTrue(loadModifiedSettings("map-rules.world.min-offers", 1).requiresRestart(previous));
+	}
+
+	@Test
+	public void testRequiresRestartDisabledFeatures() {
+		// The settings of disabled features are ignored:
+		var previous = loadDefaultSettings();
+		assertFalse(loadModifiedSettings("clustering.cell-size", 128).requiresRestart(previous));
+		assertFalse(loadModifiedSettings("change-feed.write-interval-millis", 50)
+				.requiresRestart(previous));
+	}
+
+	@Test
+	public void testRequiresRestartClusterSettings() {
+		var config = loadDefaultConfig();
+		config.set("clustering.enabled", true);
+		var previous = Settings.load(config);
+
+		config.set("clustering.cell-size", 128);
+		assertTrue(Settings.load(config).requiresRestart(previous));
+	}
+
+	@Test
+	public void testRequiresRestartStaticExport() {
+		var config = loadDefaultConfig();
+		var previous = Settings.load(config);
+
+		// Only enabled once a web root and maps are configured:
+		config.set("static-export.enabled", true);
+		assertFalse(Settings.load(config).requiresRestart(previous));
+		config.set("static-export.web-root", "web");
+		config.set("static-export.maps.world", "world");
+		var settings = Settings.load(config);
+		assertTrue(settings.requiresRestart(previous));
+
+		config.set("static-export.write-interval-millis", 0);
+		assertTrue(Settings.load(config).requiresRestart(settings));
+	}
+
+	@Test
+	public void testIncrementalChanges() {
+		var previous = loadDefaultSettings();
+
+		var settings = loadModifiedSettings("markers.sell.label", "{shop_name}");
+		assertFalse(settings.requiresRestart(previous));
+		assertEquals(Set.of("sell"), settings.getChangedMarkerShopTypes(previous));
+
+		settings = loadModifiedSettings("markers.buy.icon", "assets/shopkeepers/buy32.png");
+		assertFalse(settings.requiresRestart(previous));
+		assertEquals(Set.of("buy"), settings.getChangedMarkerShopTypes(previous));
+
+		settings = loadModifiedSettings("markers.trade.anchor-x", 0);
+		assertEquals(Set.of("trade"), settings.getChangedMarkerShopTypes(previous));
+	}
+
+	@Test
+	public void testChangedMarkerDetail() {
+		var previous = loadDefaultSettings();
+		var settings = loadModifiedSettings("marker-detail", "<b>Id:</b> {shop_id}");
+		assertFalse(settings.requiresRestart(previous));
+		assertEquals(ALL_SHOP_TYPES, settings.getChangedMarkerShopTypes(previous));
+	}
+
+	@Test
+	public void testRemovedAndAddedMarkers() {
+		var previous = loadDefaultSettings();
+
+		// Shop types without icon have no markers:
+		var settings = loadModifiedSettings("markers.book.icon", "");
+		assertEquals(Set.of("book"), settings.getChangedMarkerShopTypes(previous));
+		assertEquals(Set.of("book"), previous.getChangedMarkerShopTypes(settings));
+
+		settings = loadModifiedSettings("markers.custom.icon", "assets/custom.png");
+		assertEquals(Set.of("custom"), settings.getChangedMarkerShopTypes(previous));
+	}
+
+	@Test
+	public void testMarkerSetNameChange() {
+		// Changing the marker set name does not change the markers themselves:
+		var previous = loadDefaultSettings();
+		var settings = loadModifiedSettings("marker-set-name", "Traders");
+		assertEquals(Set.of(), settings.getChangedMarkerShopTypes(previous));
+		assertFalse(settings.requiresRestart(previous));
+	}
+
+	@Test
+	public void testMapRules() {
+		var config = loadDefaultConfig();
+		config.set("map-rules.world.include-shop-types", List.of("admin"));
+		var previous = Settings.load(config);
+		assertFalse(Settings.load(config).requiresRestart(previous));
+
+		config.set("map-rules.world.include-shop-types", List.of("admin", "sell"));
+		assertTrue(Settings.load(config).requiresRestart(previous));
+	}
+}
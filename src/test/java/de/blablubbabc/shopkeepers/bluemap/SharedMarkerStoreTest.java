@@ -0,0 +1,237 @@
+package de.blablubbabc.shopkeepers.bluemap;
+
+import static de.blablubbabc.shopkeepers.bluemap.MarkerCacheTest.entry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.blablubbabc.shopkeepers.bluemap.SharedMarkerStore.Change;
+
+public class SharedMarkerStoreTest {
+
+	private static final String SERVER_ID = "survival-1";
+	private static final long HEADER = SharedMarkerStore.LOG_HEADER_SIZE;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory;
+	private SharedMarkerStore store;
+
+	@Before
+	public void setUp() {
+		directory = folder.getRoot().toPath().resolve("shared");
+		store = new SharedMarkerStore(directory);
+	}
+
+	private List<Change> readChanges(long epoch, long offset, long expectedOffset) throws IOException {
+		var changes = new ArrayList<Change>();
+		assertEquals(expectedOffset, store.readChanges(SERVER_ID, epoch, offset, changes::add));
+		return changes;
+	}
+
+	private long getLogSize() throws IOException {
+		return Files.size(directory.resolve(SERVER_ID + ".log"));
+	}
+
+	private void appendToLog(byte[] bytes) throws IOException {
+		Files.write(directory.resolve(SERVER_ID + ".log"), bytes, StandardOpenOption.APPEND);
+	}
+
+	private static byte[] intBytes(int value) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		new DataOutputStream(bytes).writeInt(value);
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void testValidServerIds() {
+		assertTrue(SharedMarkerStore.isValidServerId("survival-1"));
+		assertTrue(SharedMarkerStore.isValidServerId("Creative_2"));
+		assertFalse(SharedMarkerStore.isValidServerId(""));
+		assertFalse(SharedMarkerStore.isValidServerId("../survival"));
+		assertFalse(SharedMarkerStore.isValidServerId("a/b"));
+		assertFalse(SharedMarkerStore.isValidServerId("a.b"));
+		assertFalse(SharedMarkerStore.isValidServerId("a b"));
+	}
+
+	@Test
+	public void testGetServerIds() throws IOException {
+		// The directory does not exist yet:
+		assertEquals(List.of(), store.getServerIds());
+
+		store.writeSnapshot("survival", 1L, List.of());
+		store.writeSnapshot("creative", 1L, List.of());
+		Files.writeString(directory.resolve("invalid id.snapshot"), "");
+		Files.writeString(directory.resolve("other.txt"), "");
+		assertEquals(Set.of("survival", "creative"), new HashSet<>(store.getServerIds()));
+	}
+
+	@Test
+	public void testSnapshotRoundTrip() throws IOException {
+		var entries = List.of(
+				entry(1, "world", "Shop"),
+				entry(2, null, "Virtual shop"),
+				entry(3, "world", "Äpfel & <Birnen>")
+		);
+		store.writeSnapshot(SERVER_ID, 5L, entries);
+		assertEquals(5L, store.readSnapshotEpoch(SERVER_ID));
+
+		var snapshot = store.readSnapshot(SERVER_ID);
+		assertNotNull(snapshot);
+		assertEquals(5L, snapshot.epoch());
+		assertEquals(entries, snapshot.entries());
+		// The temporary files were moved:
+		assertFalse(Files.exists(directory.resolve(SERVER_ID + ".snapshot.tmp")));
+		assertFalse(Files.exists(directory.resolve(SERVER_ID + ".log.tmp")));
+	}
+
+	@Test
+	public void testMissingSnapshot() throws IOException {
+		assertEquals(-1L, store.readSnapshotEpoch(SERVER_ID));
+		assertNull(store.readSnapshot(SERVER_ID));
+	}
+
+	@Test
+	public void testCorruptedSnapshot() throws IOException {
+		Files.createDirectories(directory);
+		Files.writeString(directory.resolve(SERVER_ID + ".snapshot"), "not a snapshot");
+		try {
+			store.readSnapshot(SERVER_ID);
+			fail("Expected an IOException");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testChangesRoundTrip() throws IOException {
+		store.writeSnapshot(SERVER_ID, 1L, List.of(entry(1, "world", "Shop")));
+		// The new log is empty:
+		assertEquals(List.of(), readChanges(1L, HEADER, HEADER));
+
+		var firstChanges = List.of(
+				new Change(1, entry(1, "world", "Renamed shop")),
+				new Change(2, entry(2, null, "Virtual shop"))
+		);
+		store.appendChanges(SERVER_ID, firstChanges);
+		var offset = getLogSize();
+		assertEquals(firstChanges, readChanges(1L, HEADER, offset));
+
+		var secondChanges = List.of(new Change(1, null));
+		store.appendChanges(SERVER_ID, secondChanges);
+		// Only the new changes are read when continuing at the previous offset:
+		assertEquals(secondChanges, readChanges(1L, offset, getLogSize()));
+
+		var allChanges = new ArrayList<>(firstChanges);
+		allChanges.addAll(secondChanges);
+		assertEquals(allChanges, readChanges(1L, HEADER, getLogSize()));
+	}
+
+	@Test
+	public void testNewSnapshotResetsLog() throws IOException {
+		store.writeSnapshot(SERVER_ID, 1L, List.of());
+		store.appendChanges(SERVER_ID, List.of(new Change(1, null)));
+		store.writeSnapshot(SERVER_ID, 2L, List.of());
+
+		assertEquals(-1L, store.readChanges(SERVER_ID, 1L, HEADER, change -> fail()));
+		assertEquals(List.of(), readChanges(2L, HEADER, HEADER));
+	}
+
+	@Test
+	public void testMissingLog() throws IOException {
+		assertEquals(-1L, store.readChanges(SERVER_ID, 1L, HEADER, change -> fail()));
+	}
+
+	@Test
+	public void testWrongEpoch() throws IOException {
+		store.writeSnapshot(SERVER_ID, 3L, List.of());
+		store.appendChanges(SERVER_ID, List.of(new Change(1, null)));
+		assertEquals(-1L, store.readChanges(SERVER_ID, 2L, HEADER, change -> fail()));
+	}
+
+	@Test
+	public void testPartiallyWrittenLength() throws IOException {
+		store.writeSnapshot(SERVER_ID, 1L, List.of());
+		var changes = List.of(new Change(1, entry(1, "world", "Shop")));
+		store.appendChanges(SERVER_ID, changes);
+		var offset = getLogSize();
+
+		appendToLog(new byte[] { 0, 0 });
+		assertEquals(changes, readChanges(1L, HEADER, offset));
+		assertEquals(List.of(), readChanges(1L, offset, offset));
+	}
+
+	@Test
+	public void testPartiallyWrittenChange() throws IOException {
+		store.writeSnapshot(SERVER_ID, 1L, List.of());
+		var changes = List.of(new Change(1, entry(1, "world", "Shop")));
+		store.appendChanges(SERVER_ID, changes);
+		var offset = getLogSize();
+
+		appendToLog(intBytes(100));
+		appendToLog(new byte[] { 1, 0, 0 });
+		assertEquals(changes, readChanges(1L, HEADER, offset));
+		assertEquals(List.of(), readChanges(1L, offset, offset));
+	}
+
+	@Test
+	public void testInvalidChangeLength() throws IOException {
+		for (var length : new int[] { 0, -1, Integer.MIN_VALUE, 16 * 1024 * 1024 + 1 }) {
+			store.writeSnapshot(SERVER_ID, 1L, List.of());
+			appendToLog(intBytes(length));
+			try {
+				store.readChanges(SERVER_ID, 1L, HEADER, change -> fail());
+				fail("Expected an IOException for change length " + length);
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("Invalid change length"));
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidChangeType() throws IOException {
+		store.writeSnapshot(SERVER_ID, 1L, List.of());
+		appendToLog(intBytes(5));
+		appendToLog(new byte[] { 3, 0, 0, 0, 1 });
+		try {
+			store.readChanges(SERVER_ID, 1L, HEADER, change -> fail());
+			fail("Expected an IOException");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("Invalid change type"));
+		}
+	}
+
+	@Test
+	public void testTruncatedChange() throws IOException {
+		store.writeSnapshot(SERVER_ID, 1L, List.of());
+		// A complete change whose entry is shorter than expected:
+		appendToLog(intBytes(6));
+		appendToLog(new byte[] { 1, 0, 0, 0, 1, 0 });
+		try {
+			store.readChanges(SERVER_ID, 1L, HEADER, change -> fail());
+			fail("Expected an IOException");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("Truncated change"));
+		}
+	}
+}